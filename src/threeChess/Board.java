@@ -1,31 +1,78 @@
 package threeChess;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
  * Main class for representing game state.
  * The board maps each position to the piece at that posiiton, 
- * or null is free. It also records previous moves, 
+ * or null is free, using an array indexed by the position's ordinal. 
+ * The positions of each player's pieces and of each piece type are also kept as masks, from which moves and attacks are generated.
+ * It also records previous moves, 
  * as well as whose move it is, and which pieces have been 
  * captured by which player.
  * **/
 public class Board implements Cloneable, Serializable {
   
   /** Serial version UID for Board serialization and storage**/
-  private static final long serialVersionUID = -8547775276050612530L;
-  /** A map from board positions to the pieces at that position **/
-  private HashMap<Position,Piece> board;
+  private static final long serialVersionUID = 4126409273305617782L;//changed when the per type occupancy masks were added, so boards stored before are rejected
+  /** The 96 positions, cached since Position.values() copies the array on every call **/
+  private static final Position[] POSITIONS = Position.values();
+  /** The piece types and colours, cached for decoding **/
+  private static final PieceType[] PIECE_TYPES = PieceType.values();
+  private static final Colour[] COLOURS = Colour.values();
+  /** The number of pieces each player starts with, which no player can exceed **/
+  public static final int MAX_PIECES = 16;
+  /** An upper bound on the number of legal moves in any position: 16 pieces, each with at most 95 destinations **/
+  public static final int MAX_MOVES = MAX_PIECES*95;
+  /** The version of the binary encoding written by writeTo **/
+  public static final byte ENCODING_VERSION = 1;
+  /** Random keys for each piece type and colour at each position, indexed by (3*type+colour)*96+position **/
+  private static final long[] PIECE_KEYS = new long[PieceType.values().length*Colour.values().length*POSITIONS.length];
+  /** Random keys for the player whose turn it is **/
+  private static final long[] TURN_KEYS = new long[Colour.values().length];
+
+  static{
+    Random random = new Random(0x3C4E55L);//a fixed seed, so hash keys are the same in every run
+    for(int i = 0; i<PIECE_KEYS.length; i++) PIECE_KEYS[i] = random.nextLong();
+    for(int i = 0; i<TURN_KEYS.length; i++) TURN_KEYS[i] = random.nextLong();
+  }
+
+  /** The pieces at each board position, indexed by Position.ordinal(), or null if the position is vacant **/
+  private Piece[] board;
   /**A flag that is true if and only if a King has been captured**/
   private boolean gameOver = false;
   /**The player whose turn it is**/
   private Colour turn = Colour.BLUE;//Blue goes first
-  /**The moves taken so far, represented as an array of two positions, the start and end of the move**/
-  private ArrayList<Position[]> history;//can only be changed by taking moves
+  /**The moves taken so far, packed into ints as described in MoveCode, and shared with clones**/
+  private MoveHistory history;//can only be changed by taking moves
   /**A map indicating which player has taken which piece, to support alternative scoring methods**/
   private HashMap<Colour,ArrayList<Piece>> captured;
-  /**A Map representing the remaining time allowed for each player, in milliseconds**/
-  private HashMap<Colour,Integer> timeLeft;
+  /**The remaining time allowed for each player, in milliseconds, indexed by colour**/
+  private int[] timeLeft = new int[Colour.values().length];
+  /**The Zobrist hash of the piece placement and the player whose turn it is**/
+  private long hash;
+  /**The positions of each player's pieces, as a set of ordinals packed into two longs per colour (ordinals 0-63, then 64-95)**/
+  private long[] occupancy = new long[2*Colour.values().length];
+  /**The positions of each type of piece, of any colour, packed as in occupancy (two longs per piece type)**/
+  private long[] typeOccupancy = new long[2*PieceType.values().length];
+  /**The combined value of each player's pieces on the board, indexed by colour**/
+  private int[] material = new int[Colour.values().length];
+  /**The combined value of the pieces taken by each player, indexed by colour**/
+  private int[] capturedValue = new int[Colour.values().length];
+  /**The number of moves made with makeMove that can be unmade**/
+  private transient int undoCount;
+  /**For each move that can be unmade, the piece that moved (before any promotion)**/
+  private transient Piece[] undoMover;
+  /**For each move that can be unmade, the piece that was taken, or null**/
+  private transient Piece[] undoTaken;
+  /**For each move that can be unmade, the time that was taken to play it**/
+  private transient int[] undoTime;
+  /**For each move that can be unmade, whether the game was over before it was made**/
+  private transient boolean[] undoGameOver;
+  /**For each move that can be unmade, whether the pieces moved, or the player instead ran out of time**/
+  private transient boolean[] undoApplied;
 
   /**
    * Initialises the board, placing all pieces at their initial position.
@@ -33,25 +80,30 @@ public class Board implements Cloneable, Serializable {
    * @param time the number of milliseconds each player has in total for the entire game.
    * **/
   public Board(int time){
-    board = new HashMap<Position,Piece>();
+    this();
     try{
       for(Colour c: Colour.values()){
-        board.put(Position.get(c,0,0),new Piece(PieceType.ROOK,c)); board.put(Position.get(c,0,7), new Piece(PieceType.ROOK,c));
-        board.put(Position.get(c,0,1),new Piece(PieceType.KNIGHT,c)); board.put(Position.get(c,0,6), new Piece(PieceType.KNIGHT,c));
-        board.put(Position.get(c,0,2),new Piece(PieceType.BISHOP,c)); board.put(Position.get(c,0,5), new Piece(PieceType.BISHOP,c));
-        board.put(Position.get(c,0,3),new Piece(PieceType.QUEEN,c)); board.put(Position.get(c,0,4), new Piece(PieceType.KING,c));
+        put(Position.get(c,0,0),new Piece(PieceType.ROOK,c)); put(Position.get(c,0,7), new Piece(PieceType.ROOK,c));
+        put(Position.get(c,0,1),new Piece(PieceType.KNIGHT,c)); put(Position.get(c,0,6), new Piece(PieceType.KNIGHT,c));
+        put(Position.get(c,0,2),new Piece(PieceType.BISHOP,c)); put(Position.get(c,0,5), new Piece(PieceType.BISHOP,c));
+        put(Position.get(c,0,3),new Piece(PieceType.QUEEN,c)); put(Position.get(c,0,4), new Piece(PieceType.KING,c));
         for(int i = 0; i<8; i++){
-          board.put(Position.get(c,1,i), new Piece(PieceType.PAWN,c));
+          put(Position.get(c,1,i), new Piece(PieceType.PAWN,c));
         }
       }
     }catch(ImpossiblePositionException e){}//no impossible positions in this code
-    history = new ArrayList<Position[]>();
+    Arrays.fill(timeLeft,time);
+  }
+
+  /**
+   * Initialises an empty board, with Blue to move, no history and no time, to be filled by readFrom.
+   * **/
+  private Board(){
+    board = new Piece[POSITIONS.length];
+    hash ^= TURN_KEYS[turn.ordinal()];
+    history = new MoveHistory(256);
     captured = new HashMap<Colour,ArrayList<Piece>>();
-    timeLeft = new HashMap<Colour,Integer>();
-    for(Colour c: Colour.values()){
-      captured.put(c,new ArrayList<>());
-      timeLeft.put(c,time);
-    }
+    for(Colour c: Colour.values()) captured.put(c,new ArrayList<>());
   }
 
   /** @return whether in manual mode, the legal moves should be displayed on the board. **/
@@ -61,20 +113,158 @@ public class Board implements Cloneable, Serializable {
 
   /**
    * Return a set of all the positions of pieces belonging to a player.
-   * This is a method of convenience, but is not very fast. 
-   * Time concious players may prefer to maintain their own data structure that persists between moves.
+   * This is a method of convenience, but allocates a new set on every call. 
+   * Time concious players may prefer getPositions(Colour, Position[]), which fills a reusable array.
    * @param player the Colour of the player owing the pieces
    * @return a Set of the positions that are occupied by a piece of the given colour.
    * **/
   public Set<Position> getPositions(Colour player){
     HashSet<Position> positions = new HashSet<Position>();
-    for(Position p : Position.values()){
-      if(board.containsKey(p) && board.get(p).getColour()==player)
-        positions.add(p);
+    for(int half = 0; half<2; half++){
+      for(long mask = occupancy[2*player.ordinal()+half]; mask!=0; mask &= mask-1)
+        positions.add(POSITIONS[64*half+Long.numberOfTrailingZeros(mask)]);
     }
     return positions;
   }
 
+  /**
+   * Fills an array with the positions of all the pieces belonging to a player, in ordinal order.
+   * The set of positions is maintained as moves are made, so this does not scan the board or allocate any objects.
+   * @param player the Colour of the player owing the pieces
+   * @param positions an array with room for at least MAX_PIECES positions, to be filled.
+   * @return the number of positions written to the array.
+   * **/
+  public int getPositions(Colour player, Position[] positions){
+    int count = 0;
+    for(int half = 0; half<2; half++){
+      for(long mask = occupancy[2*player.ordinal()+half]; mask!=0; mask &= mask-1)
+        positions[count++] = POSITIONS[64*half+Long.numberOfTrailingZeros(mask)];
+    }
+    return count;
+  }
+
+  /**
+   * Fills an array with the positions of a player's pieces of one type, in ordinal order.
+   * The positions of each piece type are maintained as moves are made, so this does not scan the board or allocate any objects.
+   * @param player the Colour of the player owing the pieces
+   * @param type the type of the pieces
+   * @param positions an array with room for at least MAX_PIECES positions, to be filled.
+   * @return the number of positions written to the array.
+   * **/
+  public int getPositions(Colour player, PieceType type, Position[] positions){
+    int count = 0;
+    for(int half = 0; half<2; half++){
+      for(long mask = occupancy[2*player.ordinal()+half]&typeOccupancy[2*type.ordinal()+half]; mask!=0; mask &= mask-1)
+        positions[count++] = POSITIONS[64*half+Long.numberOfTrailingZeros(mask)];
+    }
+    return count;
+  }
+
+  /**
+   * Checks whether a player has a piece that could take a piece at a position,
+   * regardless of whose turn it is and of what is at the position.
+   * Castling and pawns moving forward do not attack.
+   * The player's pieces of each type are intersected with the positions that type attacks the position from on an empty board,
+   * so only sliding pieces found that way need their rays checked for blockers.
+   * @param position the position that may be attacked
+   * @param byPlayer the Colour of the attacking player
+   * @return true if a piece of the given colour attacks the position.
+   * **/
+  public boolean isAttacked(Position position, Colour byPlayer){
+    int c = 2*byPlayer.ordinal();
+    for(PieceType type: PIECE_TYPES){
+      long[] from = StepTable.attackedFrom(type, byPlayer, position);
+      long lo = from[0]&typeOccupancy[2*type.ordinal()]&occupancy[c];
+      long hi = from[1]&typeOccupancy[2*type.ordinal()+1]&occupancy[c+1];
+      if(type.getStepReps()==1){
+        if((lo|hi)!=0) return true;
+        continue;
+      }
+      for(; lo!=0; lo &= lo-1)
+        if(slidesTo(Long.numberOfTrailingZeros(lo), position, type, byPlayer)) return true;
+      for(; hi!=0; hi &= hi-1)
+        if(slidesTo(64+Long.numberOfTrailingZeros(hi), position, type, byPlayer)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Return a set of the positions of all the pieces, of any colour, that attack a position, as described in isAttacked.
+   * @param position the position that may be attacked
+   * @return a Set of the positions of the attacking pieces.
+   * **/
+  public Set<Position> attackersOf(Position position){
+    Position[] buffer = new Position[3*MAX_PIECES];
+    int count = attackersOf(position, buffer);
+    HashSet<Position> positions = new HashSet<Position>();
+    for(int k = 0; k<count; k++) positions.add(buffer[k]);
+    return positions;
+  }
+
+  /**
+   * Fills an array with the positions of all the pieces, of any colour, that attack a position, in ordinal order.
+   * This does not allocate any objects.
+   * @param position the position that may be attacked
+   * @param positions an array with room for at least 3*MAX_PIECES positions, to be filled.
+   * @return the number of positions written to the array.
+   * **/
+  public int attackersOf(Position position, Position[] positions){
+    long attackersLo = 0, attackersHi = 0;
+    for(Colour colour: COLOURS){
+      int c = 2*colour.ordinal();
+      for(PieceType type: PIECE_TYPES){
+        long[] from = StepTable.attackedFrom(type, colour, position);
+        long lo = from[0]&typeOccupancy[2*type.ordinal()]&occupancy[c];
+        long hi = from[1]&typeOccupancy[2*type.ordinal()+1]&occupancy[c+1];
+        if(type.getStepReps()>1){//sliding pieces may be blocked
+          for(long m = lo; m!=0; m &= m-1)
+            if(!slidesTo(Long.numberOfTrailingZeros(m), position, type, colour)) lo &= ~Long.lowestOneBit(m);
+          for(long m = hi; m!=0; m &= m-1)
+            if(!slidesTo(64+Long.numberOfTrailingZeros(m), position, type, colour)) hi &= ~Long.lowestOneBit(m);
+        }
+        attackersLo |= lo; attackersHi |= hi;
+      }
+    }
+    int count = 0;
+    for(long mask = attackersLo; mask!=0; mask &= mask-1)
+      positions[count++] = POSITIONS[Long.numberOfTrailingZeros(mask)];
+    for(long mask = attackersHi; mask!=0; mask &= mask-1)
+      positions[count++] = POSITIONS[64+Long.numberOfTrailingZeros(mask)];
+    return count;
+  }
+
+  /**
+   * Checks whether a sliding piece could move from one position to another along one of its rays,
+   * without passing through a piece. The rays are only walked if their mask contains the destination.
+   * @param from the ordinal of the sliding piece's position.
+   * @param to the destination.
+   * @param type the type of the sliding piece.
+   * @param colour the colour of the sliding piece.
+   * @return true if the destination is reached before any piece in the way.
+   * **/
+  private boolean slidesTo(int from, Position to, PieceType type, Colour colour){
+    long[] masks = StepTable.rayMasks(type, colour, POSITIONS[from]);
+    Position[][] rays = StepTable.rays(type, colour, POSITIONS[from]);
+    int t = to.ordinal(), half = t>>>6;
+    long bit = 1L<<(t&63);
+    for(int s = 0; s<rays.length; s++){
+      if((masks[2*s+half]&bit)==0) continue;
+      for(Position tmp: rays[s]){
+        if(tmp==to) return true;
+        if(board[tmp.ordinal()]!=null) break;//can't pass through a piece
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param player the Colour of the player owing the pieces
+   * @return the number of pieces the player has on the board.
+   * **/
+  public int getPieceCount(Colour player){
+    return Long.bitCount(occupancy[2*player.ordinal()])+Long.bitCount(occupancy[2*player.ordinal()+1]);
+  }
+
   /** @return a set of all the pieces captured by {@param player}. **/
   public List<Piece> getCaptured(Colour player) {
     return new ArrayList<>(captured.get(player));
@@ -86,7 +276,55 @@ public class Board implements Cloneable, Serializable {
    * @return the piece at that position or null, if the position is vacant.
    * **/
   public Piece getPiece(Position position){
-    return board.get(position);
+    return board[position.ordinal()];
+  }
+
+  /**
+   * Places a piece at a position, or empties the position if the piece is null.
+   * All changes to the piece placement go through this method, so that it can keep the hash key up to date.
+   * @param position the position to update
+   * @param piece the piece to place there, or null to vacate the position.
+   * **/
+  private void put(Position position, Piece piece){
+    int i = position.ordinal();
+    long bit = 1L<<(i&63);
+    if(board[i]!=null){
+      hash ^= pieceKey(board[i],i);
+      material[board[i].getColour().ordinal()] -= board[i].getValue();
+      occupancy[2*board[i].getColour().ordinal()+(i>>>6)] &= ~bit;
+      typeOccupancy[2*board[i].getType().ordinal()+(i>>>6)] &= ~bit;
+    }
+    board[i] = piece;
+    if(piece!=null){
+      hash ^= pieceKey(piece,i);
+      material[piece.getColour().ordinal()] += piece.getValue();
+      occupancy[2*piece.getColour().ordinal()+(i>>>6)] |= bit;
+      typeOccupancy[2*piece.getType().ordinal()+(i>>>6)] |= bit;
+    }
+  }
+
+  /** @return the hash key for the piece at the position with the given ordinal **/
+  private static long pieceKey(Piece piece, int position){
+    return PIECE_KEYS[(3*piece.getType().ordinal()+piece.getColour().ordinal())*POSITIONS.length+position];
+  }
+
+  /** Sets the player whose turn it is, updating the hash key **/
+  private void setTurn(Colour colour){
+    hash ^= TURN_KEYS[turn.ordinal()]^TURN_KEYS[colour.ordinal()];
+    turn = colour;
+  }
+
+  /**
+   * Returns a 64 bit Zobrist hash of the position: the piece at each position and the player whose turn it is.
+   * The key is maintained incrementally as moves are made and unmade, so costs nothing to query,
+   * and is the same for boards with the same position however it was reached,
+   * so it can be used for transposition tables, repetition detection and evaluation caches.
+   * The history, captured pieces, time remaining and whether the game is over are not included.
+   * Distinct positions may, very rarely, have the same key.
+   * @return the hash key of the position.
+   * **/
+  public long hashKey(){
+    return hash;
   }
   
   /**
@@ -101,23 +339,7 @@ public class Board implements Cloneable, Serializable {
    * @throws ImpossiblePositionException if the step takes piece off the board.
    * **/
   public Position step(Piece piece, Direction[] step, Position current) throws ImpossiblePositionException{
-    boolean reverse = false;
-    for(Direction d: step){
-      if((piece.getColour()!=current.getColour() && piece.getType() == PieceType.PAWN) || reverse){//reverse directions for knights
-        switch(d){
-          case FORWARD: d = Direction.BACKWARD; break;
-          case BACKWARD: d = Direction.FORWARD; break;
-          case LEFT: d = Direction.RIGHT; break;
-          case RIGHT: d = Direction.LEFT; break;
-        }
-      }
-      Position next = current.neighbour(d);
-      if(next.getColour()!= current.getColour()){//need to reverse directions when switching between sections of the board
-        reverse=true;
-      }
-      current = next;
-    }
-    return current;
+    return step(piece, step, current, false);
   }
 
   /**
@@ -134,22 +356,56 @@ public class Board implements Cloneable, Serializable {
    * @throws ImpossiblePositionException if the step takes piece off the board.
    * **/
   public Position step(Piece piece, Direction[] step, Position current, boolean reverse) throws ImpossiblePositionException{
-    for(Direction d: step){
-      if((piece.getColour()!=current.getColour() && piece.getType() == PieceType.PAWN) || reverse){//reverse directions for knights
-        switch(d){
-          case FORWARD: d = Direction.BACKWARD; break;
-          case BACKWARD: d = Direction.FORWARD; break;
-          case LEFT: d = Direction.RIGHT; break;
-          case RIGHT: d = Direction.LEFT; break;
-        }
-      }
-      Position next = current.neighbour(d);
-      if(next.getColour()!= current.getColour()){//need to reverse directions when switching between sections of the board
-        reverse=true;
+    Position next = tryStep(piece, step, current, reverse);
+    if(next==null) throw new ImpossiblePositionException("Moved off board");
+    return next;
+  }
+
+  /**
+   * Performs one step of a move, as step does, 
+   * but signals a step off the board by returning null rather than throwing an exception.
+   * @param piece the piece being moved
+   * @param step an array of the direction sequence in the step
+   * @param current the starting position of the step.
+   * @return the position at the end of the step, or null if the step takes the piece off the board.
+   * **/
+  public Position tryStep(Piece piece, Direction[] step, Position current){
+    return tryStep(piece, step, current, false);
+  }
+
+  /**
+   * Performs one step of a move, as step does, 
+   * but signals a step off the board by returning null rather than throwing an exception.
+   * @param piece the piece being moved
+   * @param step an array of the direction sequence in the step
+   * @param current the starting position of the step.
+   * @param reverse whether the steps out to be reversed (if the piece crosses board section).
+   * @return the position at the end of the step, or null if the step takes the piece off the board.
+   * **/
+  public Position tryStep(Piece piece, Direction[] step, Position current, boolean reverse){
+    return StepTable.step(piece.getType(), piece.getColour(), step, current, reverse);
+  }
+
+  /**
+   * Returns the positions a piece reaches by repeating one of its steps from a position, nearest first.
+   * The ray ends at the edge of the board, and pieces that cannot iterate their steps have rays of at most one position.
+   * Other pieces on the board are not considered, so a caller looking for moves should stop at the first occupied position.
+   * The rays are precomputed, so iterating them never throws an exception.
+   * @param piece the piece being moved
+   * @param step the index of the step in piece.getType().getSteps()
+   * @param start the position the piece starts from.
+   * @return the positions on the ray, in order.
+   * **/
+  public Iterable<Position> ray(Piece piece, int step, Position start){
+    Position[] ray = StepTable.rays(piece.getType(), piece.getColour(), start)[step];
+    return () -> new Iterator<Position>(){
+      private int next = 0;
+      public boolean hasNext(){return next<ray.length;}
+      public Position next(){
+        if(next==ray.length) throw new NoSuchElementException();
+        return ray[next++];
       }
-      current = next;
-    }
-    return current;
+    };
   }
   
   /**
@@ -166,6 +422,7 @@ public class Board implements Cloneable, Serializable {
    * Note, en passant is not allowed, you can castle after King or rook have moved 
    * but they must have returned to their initial position, all pawns reaching the back row are promoted to Queen,
    * you may move into check, and you may leave your king in check, and you may castle across check.
+   * The steps, and the masks of the positions each piece attacks, are looked up in a table precomputed for each piece type, colour and position.
    * @param start the starting position of the piece
    * @param end the end position the piece intends to move to
    * @return true if and only if the move is legal in the rules of the game.
@@ -177,77 +434,202 @@ public class Board implements Cloneable, Serializable {
     Colour mCol =mover.getColour();
     if(mCol!=turn) return false;//it must be your turn
     if(target!= null && mCol==target.getColour())return false; //you can't take your own piece
-    Direction[][] steps = mover.getType().getSteps();
+    Position[][] rays = StepTable.rays(mover.getType(), mCol, start);//one ray per step, empty if the step goes off board
     switch(mover.getType()){
       case PAWN://note, there is no two step first move
-        for(int i = 0; i<steps.length; i++){
-          try{
-            if(end == step(mover,steps[i],start) && 
-                ((target==null && i==0) // 1 step forward, not taking
-                 || (target==null && i==1 // 2 steps forward, 
-                   && start.getColour()==mCol && start.getRow()==1 //must be in initial position
-                   && board.get(Position.get(mCol,2,start.getColumn()))==null)//and can't jump a piece 
-                 || (target!=null && i>1)//or taking diagonally
-                )
+        for(int i = 0; i<rays.length; i++){
+          if(rays[i].length>0 && end == rays[i][0] && 
+              ((target==null && i==0) // 1 step forward, not taking
+               || (target==null && i==1 // 2 steps forward, 
+                 && start.getColour()==mCol && start.getRow()==1 //must be in initial position
+                 && getPiece(rays[0][0])==null)//and can't jump a piece 
+               || (target!=null && i>1)//or taking diagonally
               )
-              return true;
-          }catch(ImpossiblePositionException e){}//do nothing, steps went off board.
+            )
+            return true;
         }
         break;
       case KNIGHT:
-        for(int i = 0; i<steps.length; i++){
-          try{
-            if(end == step(mover, steps[i],start))
-              return true;
-          }catch(ImpossiblePositionException e){}//do nothing, steps went off board.
-        }
+        if((StepTable.attacks(PieceType.KNIGHT, mCol, start)[end.ordinal()>>>6]&(1L<<(end.ordinal()&63)))!=0)
+          return true;
         break;
       case KING://note, you can move into check or remain in check. You may also castle across check
-        for(int i = 0; i<steps.length; i++){
-          try{
-            if(end == step(mover, steps[i],start))
-              return true;
-          }catch(ImpossiblePositionException e){}//do nothing, steps went off board.
-        }
+        if((StepTable.attacks(PieceType.KING, mCol, start)[end.ordinal()>>>6]&(1L<<(end.ordinal()&63)))!=0)
+          return true;
         //castling: Must have king and rook in their original positions, although they may have moved
-        try{
-          if(start==Position.get(mCol,0,4)){
-            if(end==Position.get(mCol,0,6)){
-              Piece castle = board.get(Position.get(mCol,0,7));
-              Piece empty1 = board.get(Position.get(mCol,0,5));
-              Piece empty2 = board.get(Position.get(mCol,0,6));
-              if(castle!=null && castle.getType()==PieceType.ROOK && castle.getColour()==mover.getColour()
-                  && empty1==null && empty2==null)
-                return true;
-            }
-            if(end==Position.get(mCol,0,2)){
-              Piece castle = board.get(Position.get(mCol,0,0));
-              Piece empty1 = board.get(Position.get(mCol,0,1));
-              Piece empty2 = board.get(Position.get(mCol,0,2));
-              Piece empty3 = board.get(Position.get(mCol,0,3));
-              if(castle!=null && castle.getType()==PieceType.ROOK && castle.getColour()==mover.getColour()
-                  && empty1==null && empty2==null && empty3==null)
-                return true;
-            }
-          }
-        }catch(ImpossiblePositionException e){}//do nothing, all positions possible here.
-        break;
-      default://rook, bishop, queen, just need to check that one of their steps is iterated.
-        for(int i = 0; i<steps.length; i++){
-          Direction[] step = steps[i];
-          try{
-            Position tmp = step(mover,step,start);
-            while(end != tmp && board.get(tmp)==null){
-              tmp = step(mover, step, tmp, tmp.getColour()!=start.getColour());
-            }
-            if(end==tmp) return true;
-          }catch(ImpossiblePositionException e){}//do nothing, steps went off board.
+        int back = 32*mCol.ordinal();//column 0 row 0 of the player's section
+        if(start==POSITIONS[back+16]){//column 4
+          if(end==POSITIONS[back+24]//column 6, with the rook in column 7 and columns 5 and 6 empty
+              && isCastle(board[back+28]) && board[back+20]==null && board[back+24]==null)
+            return true;
+          if(end==POSITIONS[back+8]//column 2, with the rook in column 0 and columns 1 to 3 empty
+              && isCastle(board[back]) && board[back+4]==null && board[back+8]==null && board[back+12]==null)
+            return true;
         }
         break;
+      default://rook, bishop, queen, just need to check that one of their steps is iterated.
+        return slidesTo(start.ordinal(), end, mover.getType(), mCol);
     }
     return false;//move did not match any legal option.
   }
 
+  /**
+   * Generates all the legal moves for the player whose turn it is, in a single pass over their pieces.
+   * The moves are exactly those for which the rules of Board.isLegalMove hold,
+   * each listed once, so agents need not test every pair of positions.
+   * The buffers are supplied by the caller so they can be reused between calls,
+   * and must each have room for at least MAX_MOVES positions.
+   * @param starts an array to be filled with the start position of each move.
+   * @param ends an array to be filled with the end position of each move.
+   * @return the number of moves generated.
+   * **/
+  public int generateMoves(Position[] starts, Position[] ends){
+    return generateMoves(starts, ends, false);
+  }
+
+  /**
+   * Generates the legal moves that capture a piece, for the player whose turn it is.
+   * @param starts an array to be filled with the start position of each move.
+   * @param ends an array to be filled with the end position of each move.
+   * @return the number of moves generated.
+   * @see #generateMoves(Position[], Position[])
+   * **/
+  public int generateCaptures(Position[] starts, Position[] ends){
+    return generateMoves(starts, ends, true);
+  }
+
+  /**
+   * Generates all the legal moves for the player whose turn it is, packed into ints as described in MoveCode.
+   * The list is cleared first, so one list can be reused for every call.
+   * @param moves the list to be filled with the moves.
+   * @return the number of moves generated.
+   * @see #generateMoves(Position[], Position[])
+   * **/
+  public int generateMoves(IntMoveList moves){
+    moves.clear();
+    return generateMoves(moves, null, null, false);
+  }
+
+  /**
+   * Generates the legal moves that capture a piece, for the player whose turn it is, packed into ints as described in MoveCode.
+   * The list is cleared first, so one list can be reused for every call.
+   * @param moves the list to be filled with the moves.
+   * @return the number of moves generated.
+   * @see #generateMoves(Position[], Position[])
+   * **/
+  public int generateCaptures(IntMoveList moves){
+    moves.clear();
+    return generateMoves(moves, null, null, true);
+  }
+
+  /**
+   * Generates legal moves for the player whose turn it is, following the rules in isLegalMove.
+   * @param starts an array to be filled with the start position of each move.
+   * @param ends an array to be filled with the end position of each move.
+   * @param capturesOnly whether to only generate moves that take a piece.
+   * @return the number of moves generated.
+   * **/
+  private int generateMoves(Position[] starts, Position[] ends, boolean capturesOnly){
+    return generateMoves(null, starts, ends, capturesOnly);
+  }
+
+  /**
+   * Generates legal moves for the player whose turn it is, following the rules in isLegalMove,
+   * either into a list of packed moves or into arrays of start and end positions.
+   * The destinations of each piece are built as a mask from the precomputed attack and ray masks and the occupancy,
+   * so the moves of each piece are listed in the ordinal order of their destinations, followed by any castling.
+   * @param moves the list to add packed moves to, or null to fill the arrays instead.
+   * @param starts an array to be filled with the start position of each move, if moves is null.
+   * @param ends an array to be filled with the end position of each move, if moves is null.
+   * @param capturesOnly whether to only generate moves that take a piece.
+   * @return the number of moves generated.
+   * **/
+  private int generateMoves(IntMoveList moves, Position[] starts, Position[] ends, boolean capturesOnly){
+    int count = 0;
+    int c = 2*turn.ordinal();
+    long ownLo = occupancy[c], ownHi = occupancy[c+1];
+    long allLo = 0, allHi = 0;
+    for(int k = 0; k<occupancy.length; k+=2){allLo |= occupancy[k]; allHi |= occupancy[k+1];}
+    long enemyLo = allLo&~ownLo, enemyHi = allHi&~ownHi;
+    long lo = ownLo, hi = ownHi;//the positions of the player's pieces
+    while(lo!=0 || hi!=0){
+      int i;
+      if(lo!=0){i = Long.numberOfTrailingZeros(lo); lo &= lo-1;}
+      else{i = 64+Long.numberOfTrailingZeros(hi); hi &= hi-1;}
+      Piece mover = board[i];
+      PieceType type = mover.getType();
+      Position start = POSITIONS[i];
+      long[] attacks = StepTable.attacks(type, turn, start);
+      long destLo, destHi;//the destinations of the piece, as bits of their ordinals
+      if(type==PieceType.PAWN){
+        destLo = attacks[0]&enemyLo; destHi = attacks[1]&enemyHi;//taking diagonally
+        Position[][] rays = StepTable.rays(type, turn, start);
+        if(!capturesOnly && rays[0].length>0 && board[rays[0][0].ordinal()]==null){// 1 step forward, not taking
+          int o = rays[0][0].ordinal();
+          if(o<64) destLo |= 1L<<o; else destHi |= 1L<<(o&63);
+          if(rays[1].length>0 && board[rays[1][0].ordinal()]==null
+              && start.getColour()==turn && start.getRow()==1){//2 steps from initial position
+            o = rays[1][0].ordinal();
+            if(o<64) destLo |= 1L<<o; else destHi |= 1L<<(o&63);
+          }
+        }
+      }
+      else if(type.getStepReps()>1){
+        long[] masks = StepTable.rayMasks(type, turn, start);
+        Position[][] rays = StepTable.rays(type, turn, start);
+        destLo = 0; destHi = 0;
+        for(int s = 0; s<rays.length; s++){
+          if((masks[2*s]&allLo)==0 && (masks[2*s+1]&allHi)==0){//nothing in the way, so the whole ray is reachable
+            destLo |= masks[2*s]; destHi |= masks[2*s+1];
+            continue;
+          }
+          for(Position end: rays[s]){
+            int o = end.ordinal();
+            if(o<64) destLo |= 1L<<o; else destHi |= 1L<<(o&63);
+            if(board[o]!=null) break;//can't pass through a piece
+          }
+        }
+        destLo &= ~ownLo; destHi &= ~ownHi;//you can't take your own piece
+      }
+      else{destLo = attacks[0]&~ownLo; destHi = attacks[1]&~ownHi;}
+      if(capturesOnly){destLo &= enemyLo; destHi &= enemyHi;}
+      while(destLo!=0 || destHi!=0){
+        int o;
+        if(destLo!=0){o = Long.numberOfTrailingZeros(destLo); destLo &= destLo-1;}
+        else{o = 64+Long.numberOfTrailingZeros(destHi); destHi &= destHi-1;}
+        Position end = POSITIONS[o];
+        if(moves!=null){
+          Piece target = board[o];
+          boolean promotes = type==PieceType.PAWN && end.getRow()==0 && end.getColour()!=turn;
+          moves.add(MoveCode.encode(start, end, type, target==null? null: target.getType(), promotes? MoveCode.PROMOTION: 0));
+        }
+        else{starts[count] = start; ends[count] = end;}
+        count++;
+      }
+      if(mover.getType()==PieceType.KING && !capturesOnly){//castling never takes a piece
+        int back = 32*turn.ordinal();//column 0 row 0 of the player's section
+        if(i==back+16){//the king's initial position, column 4 row 0
+          if(isCastle(board[back+28]) && board[back+20]==null && board[back+24]==null){
+            if(moves!=null) moves.add(MoveCode.encode(start, POSITIONS[back+24], PieceType.KING, null, MoveCode.CASTLE));
+            else{starts[count] = start; ends[count] = POSITIONS[back+24];}
+            count++;
+          }
+          if(isCastle(board[back]) && board[back+4]==null && board[back+8]==null && board[back+12]==null){
+            if(moves!=null) moves.add(MoveCode.encode(start, POSITIONS[back+8], PieceType.KING, null, MoveCode.CASTLE));
+            else{starts[count] = start; ends[count] = POSITIONS[back+8];}
+            count++;
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  /** @return true if the piece is a rook belonging to the player whose turn it is, so may be castled with. **/
+  private boolean isCastle(Piece piece){
+    return piece!=null && piece.getType()==PieceType.ROOK && piece.getColour()==turn;
+  }
+
   /**
    * Executes a legal move. 
    * If a piece is taken it is replaced at that position by the taking piece.
@@ -260,32 +642,38 @@ public class Board implements Cloneable, Serializable {
    * **/ 
   public void move(Position start, Position end, int time) throws ImpossiblePositionException{
     if(isLegalMove(start,end)){
-      Piece mover = board.get(start);
-      Piece taken = board.get(end);
-      timeLeft.put(mover.getColour(),timeLeft.get(mover.getColour())-time);
-      if(timeLeft.get(mover.getColour())<0) gameOver=true;
+      Piece mover = getPiece(start);
+      Piece taken = getPiece(end);
+      timeLeft[mover.getColour().ordinal()] -= time;
+      if(timeLeft[mover.getColour().ordinal()]<0) gameOver=true;
       else{
-        board.remove(start);//empty start square
-        if(mover.getType()==PieceType.PAWN && end.getRow()==0 && end.getColour()!=mover.getColour())
-          board.put(end, new Piece(PieceType.QUEEN, mover.getColour()));//promote pawn if back rank
-        else board.put(end,mover);//move piece
+        int flags = 0;
+        put(start,null);//empty start square
+        if(mover.getType()==PieceType.PAWN && end.getRow()==0 && end.getColour()!=mover.getColour()){
+          put(end, new Piece(PieceType.QUEEN, mover.getColour()));//promote pawn if back rank
+          flags = MoveCode.PROMOTION;
+        }
+        else put(end,mover);//move piece
         if(mover.getType()==PieceType.KING && start.getColumn()==4 && start.getRow()==0){
           if(end.getColumn()==2){//castle left, update rook
             Position rookPos = Position.get(mover.getColour(),0,0);
-            board.put(Position.get(mover.getColour(),0,3),board.get(rookPos));
-            board.remove(rookPos);
+            put(Position.get(mover.getColour(),0,3),getPiece(rookPos));
+            put(rookPos,null);
+            flags = MoveCode.CASTLE;
           }else if(end.getColumn()==6){//castle right, update rook
             Position rookPos = Position.get(mover.getColour(),0,7);
-            board.put(Position.get(mover.getColour(),0,5),board.get(rookPos));
-            board.remove(rookPos);
+            put(Position.get(mover.getColour(),0,5),getPiece(rookPos));
+            put(rookPos,null);
+            flags = MoveCode.CASTLE;
          }
         }
-        history.add(new Position[]{start,end});
+        history.add(MoveCode.encode(start, end, mover.getType(), taken==null? null: taken.getType(), flags));
         if(taken !=null){
           captured.get(mover.getColour()).add(taken);
+          capturedValue[mover.getColour().ordinal()] += taken.getValue();
           if(taken.getType()==PieceType.KING) gameOver=true;
         }
-        turn = Colour.values()[(turn.ordinal()+1)%3];
+        setTurn(COLOURS[(turn.ordinal()+1)%3]);
       }
     }
     else throw new ImpossiblePositionException("Illegal Move: "+start+"-"+end);
@@ -305,6 +693,99 @@ public class Board implements Cloneable, Serializable {
     move(start,end,0);
   }
   
+  /**
+   * Executes a legal move, so that it can later be reversed by unmakeMove.
+   * This allows agents to search by making and unmaking moves on a single board,
+   * rather than cloning the board for every move they consider.
+   * Moves must be unmade in the reverse order to which they were made,
+   * and moves made before the board was cloned cannot be unmade on the clone.
+   * @param start the starting position of the move
+   * @param end the ending position of the move
+   * @param time the number of milliseconds taken to play the move
+   * @throws ImpossiblePositionException if the move is not legal
+   * **/
+  public void makeMove(Position start, Position end, int time) throws ImpossiblePositionException{
+    Piece mover = getPiece(start);
+    Piece taken = getPiece(end);
+    boolean wasOver = gameOver;
+    int moves = history.size();
+    move(start,end,time);
+    if(undoMover==null || undoCount==undoMover.length){
+      int size = undoMover==null? 64: 2*undoMover.length;
+      undoMover = undoMover==null? new Piece[size]: Arrays.copyOf(undoMover,size);
+      undoTaken = undoTaken==null? new Piece[size]: Arrays.copyOf(undoTaken,size);
+      undoTime = undoTime==null? new int[size]: Arrays.copyOf(undoTime,size);
+      undoGameOver = undoGameOver==null? new boolean[size]: Arrays.copyOf(undoGameOver,size);
+      undoApplied = undoApplied==null? new boolean[size]: Arrays.copyOf(undoApplied,size);
+    }
+    undoMover[undoCount] = mover;
+    undoTaken[undoCount] = taken;
+    undoTime[undoCount] = time;
+    undoGameOver[undoCount] = wasOver;
+    undoApplied[undoCount] = history.size()>moves;
+    undoCount++;
+  }
+
+  /**
+   * Executes a legal move, so that it can later be reversed by unmakeMove.
+   * Method overloaded to allow for untimed games.
+   * @param start the starting position of the move
+   * @param end the ending position of the move
+   * @throws ImpossiblePositionException if the move is not legal
+   * **/
+  public void makeMove(Position start, Position end) throws ImpossiblePositionException{
+    makeMove(start,end,0);
+  }
+
+  /**
+   * Executes a legal move packed into an int, such as one from generateMoves, so that it can later be reversed by unmakeMove.
+   * Only the start and end positions of the packed move are used.
+   * @param move the packed move
+   * @throws ImpossiblePositionException if the move is not legal
+   * **/
+  public void makeMove(int move) throws ImpossiblePositionException{
+    makeMove(MoveCode.getStart(move),MoveCode.getEnd(move),0);
+  }
+
+  /**
+   * Reverses the last move made with makeMove, restoring the piece placement 
+   * (including promoted pawns and castled rooks), captured pieces, turn,
+   * time remaining, game over flag and history to their state before the move.
+   * @throws IllegalStateException if there is no move to unmake.
+   * **/
+  public void unmakeMove(){
+    if(undoCount==0) throw new IllegalStateException("No move to unmake.");
+    undoCount--;
+    Piece mover = undoMover[undoCount];
+    Piece taken = undoTaken[undoCount];
+    undoMover[undoCount] = null; undoTaken[undoCount] = null;//don't hold on to pieces
+    Colour colour = mover.getColour();
+    timeLeft[colour.ordinal()] += undoTime[undoCount];
+    gameOver = undoGameOver[undoCount];
+    if(undoApplied[undoCount]){
+      int last = history.removeLast();
+      Position start = MoveCode.getStart(last), end = MoveCode.getEnd(last);
+      put(start,mover);
+      put(end,taken);
+      if(mover.getType()==PieceType.KING && start.getColumn()==4 && start.getRow()==0){
+        int back = 32*colour.ordinal();//column 0 row 0 of the player's section
+        if(end.getColumn()==2){//castled left, return rook
+          put(POSITIONS[back],board[back+12]);
+          put(POSITIONS[back+12],null);
+        }else if(end.getColumn()==6){//castled right, return rook
+          put(POSITIONS[back+28],board[back+20]);
+          put(POSITIONS[back+20],null);
+        }
+      }
+      if(taken!=null){
+        ArrayList<Piece> takenBy = captured.get(colour);
+        takenBy.remove(takenBy.size()-1);
+        capturedValue[colour.ordinal()] -= taken.getValue();
+      }
+      setTurn(colour);
+    }
+  }
+
   /**
    * Gets the player whose turn it currently is
    * @return the colour of the player whose turn it is.
@@ -329,11 +810,22 @@ public class Board implements Cloneable, Serializable {
    * **/
   public Position[] getMove(int index){
     if(0<=index && index<getMoveCount()){
-      return history.get(index).clone();
+      return MoveCode.toPositions(history.get(index));
     }
     else throw new ArrayIndexOutOfBoundsException("Index out of bounds.");
   }
 
+  /**
+   * returns the move made at the corresponding index (starting from 0), packed into an int as described in MoveCode.
+   * Unlike getMove, this does not allocate an array.
+   * @param index the index of the move
+   * @return the packed move, including the piece moved and captured.
+   * @throws ArrayIndexOutOfBoundsException if the index does not correspond to a move.
+   * **/
+  public int getPackedMove(int index){
+    return history.get(index);
+  }
+
   /**
    * Calculates a players score, used for some variants of the game.
    * The score is the combined piece values of the players pieces on the board,
@@ -341,17 +833,12 @@ public class Board implements Cloneable, Serializable {
    * This is a convenience method which gives a basic utility value.
    * It can be used to encourage more aggressive play in agents, 
    * but the traditional scoring is +1 for taking a King, and -1 for losing a King, 
+   * Both totals are maintained as moves are made, so this takes constant time.
    * @param player the colour of the player
    * @return the score of the player.
    * **/
   public int score(Colour player){
-    int score = 0;
-    for(Position p: Position.values()){
-      Piece piece = board.get(p);
-      if(piece!=null && piece.getColour()==player) score+=piece.getValue();
-    }
-    for(Piece piece: captured.get(player)) score+=piece.getValue();  
-    return score;
+    return material[player.ordinal()]+capturedValue[player.ordinal()];
   }
 
   /** 
@@ -368,13 +855,14 @@ public class Board implements Cloneable, Serializable {
    * **/
   public Colour getWinner(){
     if(gameOver){
-      for(Colour c: Colour.values()){
-        for(Piece taken: captured.get(c)){
-          if(taken.getType()==PieceType.KING) return c;
+      for(Colour c: COLOURS){
+        ArrayList<Piece> taken = captured.get(c);
+        for(int i = 0; i<taken.size(); i++){//indexed, so searches that call this often allocate no iterators
+          if(taken.get(i).getType()==PieceType.KING) return c;
         }
-        if(timeLeft.get(c)<0){
+        if(timeLeft[c.ordinal()]<0){
           Colour winner = null; int max = Integer.MIN_VALUE;
-          for(Colour d: Colour.values()){
+          for(Colour d: COLOURS){
             int score = score(d);
             if(d!=c && score>max){
               winner = d; max = score;
@@ -394,11 +882,12 @@ public class Board implements Cloneable, Serializable {
    * **/
   public Colour getLoser(){
     if(gameOver){
-      for(Colour c: Colour.values()){
-        for(Piece taken: captured.get(c)){
-          if(taken.getType()==PieceType.KING) return taken.getColour();
+      for(Colour c: COLOURS){
+        ArrayList<Piece> taken = captured.get(c);
+        for(int i = 0; i<taken.size(); i++){
+          if(taken.get(i).getType()==PieceType.KING) return taken.get(i).getColour();
         }
-        if(timeLeft.get(c)<0) return c;
+        if(timeLeft[c.ordinal()]<0) return c;
       }
     }
     return null;
@@ -409,20 +898,146 @@ public class Board implements Cloneable, Serializable {
    * @return the time remaining, in milliseconds.
    * **/
   public int getTimeLeft(Colour colour){
-    return timeLeft.get(colour);
+    return timeLeft[colour.ordinal()];
+  }
+
+  /**
+   * Returns the number of bytes writeTo will write for this board.
+   * @param withHistory whether the move history is to be included.
+   * @return the size of the encoding, in bytes.
+   * **/
+  public int encodedSize(boolean withHistory){
+    int pieces = 0, taken = 0;
+    for(Colour c: Colour.values()){
+      pieces += getPieceCount(c);
+      taken += captured.get(c).size();
+    }
+    return 2+POSITIONS.length/2+(pieces+3)/4+4*Colour.values().length+Colour.values().length+taken
+      +(withHistory? 4+3*history.size(): 0);
+  }
+
+  /**
+   * Writes the board to a buffer in a compact binary encoding, that readFrom reads back. 
+   * The encoding is a version byte, then a byte holding the turn, whether the game is over and whether the history is included,
+   * then a nibble per position holding the type of the piece there (0 if vacant, otherwise the type's ordinal plus 1),
+   * then two bits for the colour of each piece in position order, then the time left for each player,
+   * then for each player a count of the pieces they have captured followed by a byte per piece (type ordinal * 4 + colour ordinal),
+   * and optionally the number of moves followed by each move packed as in MoveCode, in three bytes.
+   * Integers are written in the buffer's byte order, so buffers must be read with the order they were written in.
+   * No objects are allocated.
+   * The undo stack of makeMove is not written.
+   * @param buffer the buffer to write to, with at least encodedSize(withHistory) bytes remaining.
+   * @param withHistory whether to include the move history.
+   * @throws java.nio.BufferOverflowException if the buffer does not have room for the encoding.
+   * **/
+  public void writeTo(ByteBuffer buffer, boolean withHistory){
+    buffer.put(ENCODING_VERSION);
+    buffer.put((byte)(turn.ordinal() | (gameOver? 4: 0) | (withHistory? 8: 0)));
+    for(int i = 0; i<board.length; i += 2)
+      buffer.put((byte)(typeCode(board[i]) | typeCode(board[i+1])<<4));
+    int bits = 0, count = 0;
+    for(int i = 0; i<board.length; i++){
+      if(board[i]==null) continue;
+      bits |= board[i].getColour().ordinal()<<(2*count);
+      if(++count==4){buffer.put((byte)bits); bits = 0; count = 0;}
+    }
+    if(count>0) buffer.put((byte)bits);
+    for(Colour c: Colour.values()) buffer.putInt(timeLeft[c.ordinal()]);
+    for(Colour c: Colour.values()){
+      ArrayList<Piece> taken = captured.get(c);
+      buffer.put((byte)taken.size());
+      for(int i = 0; i<taken.size(); i++)
+        buffer.put((byte)(taken.get(i).getType().ordinal()<<2 | taken.get(i).getColour().ordinal()));
+    }
+    if(withHistory){
+      buffer.putInt(history.size());
+      for(int i = 0; i<history.size(); i++){
+        int move = history.get(i);
+        buffer.put((byte)move).put((byte)(move>>>8)).put((byte)(move>>>16));
+      }
+    }
+  }
+
+  /**
+   * Reads a board written by writeTo from a buffer, leaving the buffer positioned after it.
+   * Apart from the board and its pieces, no objects are allocated.
+   * If the history was not written, the board has no history, so getMoveCount returns 0.
+   * @param buffer the buffer to read from.
+   * @return the board.
+   * @throws IllegalArgumentException if the encoding has an unsupported version or is corrupt.
+   * @throws java.nio.BufferUnderflowException if the buffer ends before the encoding does.
+   * **/
+  public static Board readFrom(ByteBuffer buffer){
+    byte version = buffer.get();
+    if(version!=ENCODING_VERSION) throw new IllegalArgumentException("Unsupported board encoding version "+version);
+    int flags = buffer.get();
+    if((flags&3)>=COLOURS.length) throw new IllegalArgumentException("Corrupt board encoding");
+    Board board = new Board();
+    int types = buffer.position();//the type nibbles are read in place, while the colours that follow them are read in turn
+    buffer.position(types+POSITIONS.length/2);
+    int bits = 0, count = 0;
+    for(int i = 0; i<POSITIONS.length; i++){
+      int type = (buffer.get(types+i/2)>>>(4*(i&1)))&15;
+      if(type==0) continue;
+      if(type>PIECE_TYPES.length) throw new IllegalArgumentException("Corrupt board encoding");
+      if(count==0) bits = buffer.get();
+      board.put(POSITIONS[i], new Piece(PIECE_TYPES[type-1], colour(bits>>>(2*count))));
+      count = (count+1)%4;
+    }
+    for(Colour c: Colour.values()) board.timeLeft[c.ordinal()] = buffer.getInt();
+    for(Colour c: Colour.values()){
+      int taken = buffer.get()&255;
+      for(int i = 0; i<taken; i++){
+        int b = buffer.get()&255;
+        if(b>>>2>=PIECE_TYPES.length) throw new IllegalArgumentException("Corrupt board encoding");
+        Piece piece = new Piece(PIECE_TYPES[b>>>2], colour(b));
+        board.captured.get(c).add(piece);
+        board.capturedValue[c.ordinal()] += piece.getValue();
+      }
+    }
+    if((flags&8)!=0){
+      int moves = buffer.getInt();
+      if(moves<0) throw new IllegalArgumentException("Corrupt board encoding");
+      for(int i = 0; i<moves; i++)
+        board.history.add((buffer.get()&255) | (buffer.get()&255)<<8 | (buffer.get()&255)<<16);
+    }
+    board.gameOver = (flags&4)!=0;
+    board.setTurn(COLOURS[flags&3]);
+    return board;
+  }
+
+  /** @return the nibble encoding the type of a piece, 0 for no piece **/
+  private static int typeCode(Piece piece){
+    return piece==null? 0: piece.getType().ordinal()+1;
+  }
+
+  /** @return the colour encoded in the two low bits, checking it is a colour **/
+  private static Colour colour(int bits){
+    if((bits&3)>=COLOURS.length) throw new IllegalArgumentException("Corrupt board encoding");
+    return COLOURS[bits&3];
   }
 
   /**
    * Returns a deep clone of the board state, 
    * such that no operations will affect the original board instance.
+   * The clone has the same hash key as the original.
+   * The move history is shared rather than copied, so cloning does not slow down as the game goes on.
+   * Moves made with makeMove before cloning cannot be unmade on the clone.
+   * Cloning only reads this board, so several threads may clone the same board at once, as long as none makes or unmakes a move on it.
    * @return a deep clone of the board state.
    * **/ 
   public Object clone() throws CloneNotSupportedException{
     Board clone = (Board) super.clone();
-    clone.board = (HashMap<Position,Piece>)board.clone();
-    clone.history = new ArrayList<Position[]>();
-    for(Position[] move: history) clone.history.add(move.clone());
-    clone.timeLeft = (HashMap<Colour,Integer>) timeLeft.clone();
+    clone.undoCount = 0;
+    clone.undoMover = null; clone.undoTaken = null; clone.undoTime = null;
+    clone.undoGameOver = null; clone.undoApplied = null;
+    clone.board = board.clone();
+    clone.history = history.share();
+    clone.material = material.clone();
+    clone.occupancy = occupancy.clone();
+    clone.typeOccupancy = typeOccupancy.clone();
+    clone.capturedValue = capturedValue.clone();
+    clone.timeLeft = timeLeft.clone();
     clone.captured = new HashMap<Colour,ArrayList<Piece>>();
     for(Colour c: Colour.values()) clone.captured.put(c, (ArrayList<Piece>) captured.get(c).clone());
     return clone;
@@ -0,0 +1,153 @@
+package threeChess;
+
+import java.util.Random;
+
+/**
+ * A differential check of Board against the rules as they were when the pieces were kept in a HashMap,
+ * and a measure of the throughput of clone, move and isLegalMove.
+ * Seeded random games are played, each move chosen from the legal moves found by testing every pair of positions with isLegalMove.
+ * A digest of every position reached (its legal moves, the piece at each position, the scores, the player to move and whether the game is over)
+ * is compared with the digest the same games gave on the HashMap board, recorded before it was replaced.
+ * The legal moves found by isLegalMove are also checked against generateMoves.
+ * Run with "java -cp bin threeChess.BoardCheck", which exits with status 1 if any check fails.
+ * **/
+public class BoardCheck{
+
+  /** The number of games played **/
+  private static final int GAMES = 20;
+  /** The most moves played in a game **/
+  private static final int MAX_PLIES = 400;
+  /** The number of times each operation is timed **/
+  private static final int REPEATS = 200000;
+  /** The number of boards cloned before their moves are timed **/
+  private static final int BATCH = 1000;
+
+  /**
+   * The digest of each game, as played on the HashMap board.
+   * **/
+  private static final long[] GOLDEN = {
+    -1890668146767649514L, 1520133217896184786L, 7509847301856086935L, -2355711109736226946L, -1751293061799702147L,
+    -940076283429065262L, 5060448671277214914L, 3498492227682418736L, -4848831670780254635L, -5204300365487004569L,
+    -2715243615108171115L, -655123008438350L, -685568707783833409L, 5951202472483068255L, 2166657415820989515L,
+    1125020998104112917L, -2375720349978315961L, 4400921949869747601L, 2928611255481865819L, -4645803108714433777L,
+  };
+
+  /** Not instantiable **/
+  private BoardCheck(){}
+
+  /** Adds a value to a digest **/
+  private static long mix(long digest, long value){
+    return (digest^value)*0x100000001B3L;
+  }
+
+  /**
+   * Plays a seeded random game, choosing each move from those isLegalMove allows.
+   * @param seed the seed of the game.
+   * @param generated whether to check each position's legal moves against generateMoves.
+   * @return the digest of the positions reached, or 0 if generateMoves disagreed with isLegalMove.
+   * **/
+  private static long playGame(long seed, boolean generated) throws ImpossiblePositionException{
+    Random random = new Random(seed);
+    Board board = new Board(Integer.MAX_VALUE);
+    Position[] positions = Position.values();
+    Position[] starts = new Position[positions.length*positions.length];
+    Position[] ends = new Position[positions.length*positions.length];
+    long digest = seed;
+    for(int ply = 0; ply<MAX_PLIES; ply++){
+      int count = 0;
+      for(Position start: positions){
+        for(Position end: positions){
+          if(board.isLegalMove(start, end)){
+            starts[count] = start; ends[count] = end; count++;
+            digest = mix(digest, start.ordinal()*positions.length+end.ordinal());
+          }
+        }
+      }
+      if(generated && !sameMoves(board, starts, ends, count)) return 0;
+      for(Position position: positions){
+        Piece piece = board.getPiece(position);
+        digest = mix(digest, piece==null? 0: 4*(piece.getType().ordinal()+1)+piece.getColour().ordinal());
+      }
+      for(Colour colour: Colour.values()) digest = mix(digest, board.score(colour));
+      digest = mix(digest, board.getTurn().ordinal());
+      digest = mix(digest, board.gameOver()? 1: 0);
+      if(board.gameOver() || count==0) break;
+      int move = random.nextInt(count);
+      board.move(starts[move], ends[move]);
+    }
+    return digest;
+  }
+
+  /**
+   * @return whether generateMoves finds the same moves as isLegalMove, in any order.
+   * **/
+  private static boolean sameMoves(Board board, Position[] starts, Position[] ends, int count){
+    Position[] generatedStarts = new Position[Board.MAX_MOVES];
+    Position[] generatedEnds = new Position[Board.MAX_MOVES];
+    if(board.generateMoves(generatedStarts, generatedEnds)!=count) return false;
+    int n = Position.values().length;
+    boolean[] found = new boolean[n*n];
+    for(int i = 0; i<count; i++) found[starts[i].ordinal()*n+ends[i].ordinal()] = true;
+    for(int i = 0; i<count; i++){
+      if(!found[generatedStarts[i].ordinal()*n+generatedEnds[i].ordinal()]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Times clone, move and isLegalMove on the board reached in the middle of a seeded random game.
+   * @return the operations per second of clone, of move on a board cloned beforehand, and of isLegalMove.
+   * **/
+  private static double[] throughput() throws Exception{
+    Random random = new Random(GAMES);
+    Board board = new Board(Integer.MAX_VALUE);
+    Position[] starts = new Position[Board.MAX_MOVES];
+    Position[] ends = new Position[Board.MAX_MOVES];
+    int count = board.generateMoves(starts, ends);
+    for(int ply = 0; ply<30 && count>0 && !board.gameOver(); ply++){
+      int move = random.nextInt(count);
+      board.move(starts[move], ends[move]);
+      count = board.generateMoves(starts, ends);
+    }
+    Position[] positions = Position.values();
+    Object sink = null;
+    long start = System.nanoTime();
+    for(int i = 0; i<REPEATS; i++) sink = board.clone();
+    long cloning = System.nanoTime()-start;
+    Board[] clones = new Board[BATCH];
+    long moves = 0;
+    for(int batch = 0; batch<REPEATS; batch += BATCH){
+      for(int i = 0; i<BATCH; i++) clones[i] = (Board) board.clone();
+      start = System.nanoTime();
+      for(int i = 0; i<BATCH; i++) clones[i].move(starts[(batch+i)%count], ends[(batch+i)%count]);
+      moves += System.nanoTime()-start;
+    }
+    sink = clones[BATCH-1];
+    int legal = 0;
+    start = System.nanoTime();
+    for(int i = 0; i<REPEATS; i++){
+      if(board.isLegalMove(positions[i%positions.length], positions[i/positions.length%positions.length])) legal++;
+    }
+    long probes = System.nanoTime()-start;
+    if(sink==null || legal<0) throw new IllegalStateException();//keep the results live
+    return new double[]{REPEATS*1e9/cloning, REPEATS*1e9/moves, REPEATS*1e9/probes};
+  }
+
+  /**
+   * Runs the differential check and reports the throughput.
+   * @param args not used.
+   * **/
+  public static void main(String[] args) throws Exception{
+    boolean ok = true;
+    for(int game = 0; game<GAMES; game++){
+      long digest = playGame(game, true);
+      boolean match = digest==GOLDEN[game];
+      ok &= match;
+      System.out.printf("game %2d %20d %s%n", game, digest, digest==0? "GENERATED MOVES DIFFER": match? "OK": "MISMATCH");
+    }
+    throughput();//warm up
+    double[] rates = throughput();
+    System.out.printf("clone/s %.0f  move/s %.0f  isLegalMove/s %.0f%n", rates[0], rates[1], rates[2]);
+    if(!ok) System.exit(1);
+  }
+}
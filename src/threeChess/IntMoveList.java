@@ -0,0 +1,110 @@
+package threeChess;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A growable list of packed moves (see MoveCode), stored in an int array 
+ * so that moves are never boxed.
+ * Lists may be cleared and refilled, so a search can reuse one list per ply.
+ * **/
+public class IntMoveList implements Cloneable, Serializable{
+
+  private static final long serialVersionUID = 2890426318725011342L;
+  /** The packed moves, of which the first size are in the list **/
+  private int[] moves;
+  /** The number of moves in the list **/
+  private int size;
+
+  /** Creates an empty list with room for Board.MAX_MOVES moves, enough for any position's legal moves. **/
+  public IntMoveList(){
+    this(Board.MAX_MOVES);
+  }
+
+  /**
+   * Creates an empty list.
+   * @param capacity the number of moves the list can hold before it needs to grow.
+   * **/
+  public IntMoveList(int capacity){
+    moves = new int[Math.max(capacity,1)];
+  }
+
+  /** @return the number of moves in the list. **/
+  public int size(){return size;}
+
+  /** @return true if there are no moves in the list. **/
+  public boolean isEmpty(){return size==0;}
+
+  /** Removes all moves from the list, keeping its capacity. **/
+  public void clear(){size = 0;}
+
+  /**
+   * Appends a move to the list, growing it if need be.
+   * @param move the packed move.
+   * **/
+  public void add(int move){
+    if(size==moves.length) moves = Arrays.copyOf(moves, 2*moves.length);
+    moves[size++] = move;
+  }
+
+  /**
+   * @param index the index of the move, from 0.
+   * @return the packed move at that index.
+   * @throws ArrayIndexOutOfBoundsException if the index does not correspond to a move.
+   * **/
+  public int get(int index){
+    if(index<0 || index>=size) throw new ArrayIndexOutOfBoundsException("Index out of bounds.");
+    return moves[index];
+  }
+
+  /**
+   * Replaces the move at an index, for example to reorder moves.
+   * @param index the index of the move, from 0.
+   * @param move the packed move.
+   * @throws ArrayIndexOutOfBoundsException if the index does not correspond to a move.
+   * **/
+  public void set(int index, int move){
+    if(index<0 || index>=size) throw new ArrayIndexOutOfBoundsException("Index out of bounds.");
+    moves[index] = move;
+  }
+
+  /**
+   * Removes and returns the last move in the list.
+   * @return the packed move.
+   * @throws ArrayIndexOutOfBoundsException if the list is empty.
+   * **/
+  public int removeLast(){
+    if(size==0) throw new ArrayIndexOutOfBoundsException("List is empty.");
+    return moves[--size];
+  }
+
+  /**
+   * Removes the move at an index in constant time, by moving the last move into its place.
+   * The order of the remaining moves is therefore not preserved.
+   * @param index the index of the move, from 0.
+   * @return the packed move that was removed.
+   * @throws ArrayIndexOutOfBoundsException if the index does not correspond to a move.
+   * **/
+  public int swapRemove(int index){
+    int move = get(index);
+    moves[index] = moves[--size];
+    return move;
+  }
+
+  /**
+   * Returns a copy of the list, which can be changed independently.
+   * @return a copy of the list.
+   * **/
+  public Object clone() throws CloneNotSupportedException{
+    IntMoveList clone = (IntMoveList) super.clone();
+    clone.moves = Arrays.copyOf(moves, Math.max(size,1));
+    return clone;
+  }
+
+  /** @return a String representation of the moves in the list. **/
+  public String toString(){
+    StringBuilder sb = new StringBuilder("[");
+    for(int i = 0; i<size; i++) sb.append(i>0? ", ": "").append(MoveCode.toString(moves[i]));
+    return sb.append(']').toString();
+  }
+}
@@ -0,0 +1,78 @@
+package threeChess;
+
+/**
+ * Static methods for packing a move into a single int, 
+ * so moves can be generated, stored and compared without allocating objects.
+ * The bits of a packed move are:
+ * 0-6, the ordinal of the start position;
+ * 7-13, the ordinal of the end position;
+ * 14-16, the ordinal of the type of the moving piece;
+ * 17-19, one more than the ordinal of the type of the captured piece, or 0 if no piece is captured;
+ * 20, set if a pawn is promoted to Queen;
+ * 21, set if the move castles the King.
+ * Moves may be converted to and from the pair of positions used by Agent.playMove.
+ * **/
+public final class MoveCode{
+
+  /** The positions in ordinal order **/
+  private static final Position[] POSITIONS = Position.values();
+  /** The piece types in ordinal order **/
+  private static final PieceType[] TYPES = PieceType.values();
+  /** The flag set on promotion moves **/
+  public static final int PROMOTION = 1<<20;
+  /** The flag set on castling moves **/
+  public static final int CASTLE = 1<<21;
+
+  /** Not instantiable **/
+  private MoveCode(){}
+
+  /**
+   * Packs a move into an int.
+   * @param start the starting position of the move
+   * @param end the ending position of the move
+   * @param moved the type of the piece being moved
+   * @param captured the type of the piece captured, or null if none is.
+   * @param flags PROMOTION and/or CASTLE, or 0.
+   * @return the packed move.
+   * **/
+  public static int encode(Position start, Position end, PieceType moved, PieceType captured, int flags){
+    return start.ordinal() | end.ordinal()<<7 | moved.ordinal()<<14 | (captured==null? 0: captured.ordinal()+1)<<17 | flags;
+  }
+
+  /** @return the starting position of a packed move. **/
+  public static Position getStart(int move){return POSITIONS[move&127];}
+
+  /** @return the ending position of a packed move. **/
+  public static Position getEnd(int move){return POSITIONS[move>>>7&127];}
+
+  /** @return the type of the moving piece of a packed move. **/
+  public static PieceType getMoved(int move){return TYPES[move>>>14&7];}
+
+  /** @return the type of the piece captured by a packed move, or null if none is. **/
+  public static PieceType getCaptured(int move){
+    int captured = move>>>17&7;
+    return captured==0? null: TYPES[captured-1];
+  }
+
+  /** @return true if the packed move captures a piece. **/
+  public static boolean isCapture(int move){return (move>>>17&7)!=0;}
+
+  /** @return true if the packed move promotes a pawn. **/
+  public static boolean isPromotion(int move){return (move&PROMOTION)!=0;}
+
+  /** @return true if the packed move castles the King. **/
+  public static boolean isCastle(int move){return (move&CASTLE)!=0;}
+
+  /**
+   * Converts a packed move to the representation used by Agent.playMove.
+   * @return a new two element array of the start and end positions of the move.
+   * **/
+  public static Position[] toPositions(int move){
+    return new Position[]{getStart(move), getEnd(move)};
+  }
+
+  /** @return a String representation of the packed move, such as BE2-BE4. **/
+  public static String toString(int move){
+    return getStart(move)+"-"+getEnd(move);
+  }
+}
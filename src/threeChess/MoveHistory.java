@@ -0,0 +1,122 @@
+package threeChess;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The log of packed moves (see MoveCode) played on a board.
+ * Moves are appended to a private tail, which is frozen into an immutable segment each time it fills one,
+ * so the tail never holds more than a segment of moves.
+ * Sharing the log with a clone gives the clone a segment of its own holding the tail, on top of the frozen segments,
+ * so it copies at most one small segment, however long the game has been,
+ * and a clone's history never changes when its parent's does.
+ * Sharing only reads the log, so any number of threads may share the same log at once, as long as none changes it.
+ * **/
+class MoveHistory implements Serializable{
+
+  private static final long serialVersionUID = -3719286447018827360L;
+  /** The number of moves in a full tail, and segments with fewer moves than this are merged into the segment a clone is given on top of them **/
+  private static final int SEGMENT_SIZE = 64;
+
+  /**
+   * An immutable run of moves, following the first base moves of the previous segments.
+   * **/
+  private static final class Segment implements Serializable{
+    private static final long serialVersionUID = 6054120738913826712L;
+    /** The moves in the segment, which are never changed **/
+    private final int[] moves;
+    /** The segment holding the moves before this one, or null **/
+    private final Segment previous;
+    /** The index of the first move in this segment **/
+    private final int base;
+
+    private Segment(int[] moves, Segment previous, int base){
+      this.moves = moves; this.previous = previous; this.base = base;
+    }
+  }
+
+  /** The most recent frozen segment, shared with other logs, or null **/
+  private Segment frozen;
+  /** The number of moves of the frozen segments that are in this log, which is less than they hold if moves have been removed **/
+  private int frozenSize;
+  /** The moves after the frozen ones, which belong to this log alone **/
+  private int[] tail;
+  /** The number of moves in the tail **/
+  private int tailSize;
+
+  /**
+   * Creates an empty log.
+   * @param capacity the number of moves the log can hold before its tail needs to grow, up to a segment.
+   * **/
+  MoveHistory(int capacity){
+    tail = new int[Math.min(Math.max(capacity,1), SEGMENT_SIZE)];
+  }
+
+  /** @return the number of moves in the log. **/
+  int size(){return frozenSize+tailSize;}
+
+  /**
+   * Appends a move to the log.
+   * @param move the packed move.
+   * **/
+  void add(int move){
+    if(tailSize==SEGMENT_SIZE){//freeze the full tail, so sharing never copies more than a segment
+      frozen = new Segment(Arrays.copyOf(tail, tailSize), frozen, frozenSize);
+      frozenSize += tailSize;
+      tailSize = 0;
+    }
+    if(tailSize==tail.length) tail = Arrays.copyOf(tail, Math.min(2*tail.length, SEGMENT_SIZE));
+    tail[tailSize++] = move;
+  }
+
+  /**
+   * @param index the index of the move, from 0.
+   * @return the packed move at that index.
+   * @throws ArrayIndexOutOfBoundsException if the index does not correspond to a move.
+   * **/
+  int get(int index){
+    if(index<0 || index>=size()) throw new ArrayIndexOutOfBoundsException("Index out of bounds.");
+    if(index>=frozenSize) return tail[index-frozenSize];
+    Segment segment = frozen;
+    while(index<segment.base) segment = segment.previous;
+    return segment.moves[index-segment.base];
+  }
+
+  /**
+   * Removes and returns the last move in the log.
+   * Frozen moves are only dropped from this log, so other logs sharing them are unaffected.
+   * @return the packed move.
+   * @throws ArrayIndexOutOfBoundsException if the log is empty.
+   * **/
+  int removeLast(){
+    if(tailSize>0) return tail[--tailSize];
+    if(frozenSize==0) throw new ArrayIndexOutOfBoundsException("History is empty.");
+    int move = get(frozenSize-1);
+    frozenSize--;
+    while(frozen!=null && frozenSize<=frozen.base) frozen = frozen.previous;
+    return move;
+  }
+
+  /**
+   * Returns a log with the same moves, which shares the frozen segments of this log rather than copying them.
+   * The tail of this log is copied into a new segment for the returned log alone, so the cost is bounded by the segment size
+   * rather than the number of moves, and this log is not changed.
+   * @return a log that can be changed independently of this one.
+   * **/
+  MoveHistory share(){
+    Segment top = frozen;
+    if(tailSize>0){
+      if(frozen!=null && frozenSize-frozen.base+tailSize<=SEGMENT_SIZE){//merge with the small segment below
+        int length = frozenSize-frozen.base;
+        int[] moves = Arrays.copyOf(frozen.moves, length+tailSize);
+        System.arraycopy(tail, 0, moves, length, tailSize);
+        top = new Segment(moves, frozen.previous, frozen.base);
+      }
+      else top = new Segment(Arrays.copyOf(tail, tailSize), frozen, frozenSize);
+    }
+    MoveHistory shared = new MoveHistory(16);
+    shared.frozen = top;
+    shared.frozenSize = frozenSize+tailSize;
+    return shared;
+  }
+}
@@ -0,0 +1,162 @@
+package threeChess;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A perft (performance test) tool, which counts the leaf nodes of the game tree to a fixed depth.
+ * The counts are compared with golden counts taken from the current rules,
+ * so any change to move generation or to Board.isLegalMove that changes the rules is detected,
+ * and the nodes counted per second give a measure of move generation speed.
+ * Positions where the game is over are counted as leaves, as no moves are made from them.
+ * Run with "java -cp bin threeChess.Perft [depth] [threads]",
+ * where depth is the greatest depth to count (default 4) and threads is the number used to split the count (default, the number of processors).
+ * **/
+public class Perft{
+
+  /**
+   * The positions counted from, each given by its name and the moves played from the start to reach it.
+   * **/
+  static final String[][] POSITIONS = {
+    {"start", ""},
+    {"opening", "BG1-BH3 GE2-GE3 RG1-RF3 BD2-BD3 GA2-GA4 RG2-RG4 BF2-BF4 GG2-GG3 RG4-GA4 BB2-BB3 GC2-GC4 RD2-RD3"},
+    {"middle", "BA2-BA3 GE2-GE3 RF2-RF4 BH2-BH3 GD1-GG4 RB2-RB4 BH3-BH4 GG4-BB2 RB4-BH4 BF2-BF4 BB2-BA3 RC2-RC3 "
+      +"BC1-BA3 GG1-GH3 RG2-RG3 BA3-GE3 GF1-RG4 RD1-RB3 GE3-GD2 GC1-GD2 RB3-BC2 BD1-BC2 RG4-RE2 RD2-RD4"},
+    {"late", "BF2-BF3 GG2-GG3 RA2-RA4 BB2-BB4 GG1-GF3 RE2-RE4 BH2-BH3 GF1-GG2 RF1-BH3 BG2-BH3 GF3-BB4 RE1-RE2 "
+      +"BF3-BF4 GG2-BG2 RD1-RE1 BF4-RC4 BG2-GF3 RH2-RH3 BH3-BH4 BB4-BC2 RE2-RF1 BD1-BC2 GE1-GG1 RG1-RE2 "
+      +"BC2-GF3 GE2-GF3 RE4-GD4 BH1-BH3 GD2-GD3 RA1-RA2 BE2-BE3 GG1-GG2 RE2-RD4 BE1-BE2 GB2-GB4 RD4-GD3 "
+      +"BB1-BA3 GC1-BA3 GD3-GF2 BC1-BA3 GC2-GC4 RG2-RG3 BE2-BF2 GG2-GH3 RE1-RE2"},
+  };
+
+  /**
+   * The golden counts for each position, from depth 1, as generated by the rules when the tool was written.
+   * **/
+  private static final long[][] GOLDEN = {
+    {20, 400, 8000, 178080, 3961256},
+    {25, 775, 23869, 620940, 19719814},
+    {38, 1433, 37804, 1450121, 52296103},
+    {32, 774, 26166, 834672, 22476436},
+  };
+
+  /** Not instantiable **/
+  private Perft(){}
+
+  /**
+   * Counts the leaf nodes of the game tree to a given depth, by making and unmaking moves on the board.
+   * The board is left as it was found.
+   * @param board the board to count from.
+   * @param depth the number of moves to look ahead.
+   * @return the number of positions reached after exactly depth moves, or at which the game ended sooner.
+   * **/
+  public static long perft(Board board, int depth){
+    return perft(board, depth, new IntMoveList[depth]);
+  }
+
+  /** Counts the leaf nodes, using a reusable move list for each remaining depth **/
+  private static long perft(Board board, int depth, IntMoveList[] lists){
+    if(depth==0 || board.gameOver()) return 1;
+    IntMoveList moves = lists[depth-1];
+    if(moves==null) moves = lists[depth-1] = new IntMoveList();
+    int count = board.generateMoves(moves);
+    if(depth==1) return count;
+    long nodes = 0;
+    for(int i = 0; i<count; i++){
+      try{
+        board.makeMove(moves.get(i));
+      }catch(ImpossiblePositionException e){
+        throw new IllegalStateException("Generated move is not legal: "+MoveCode.toString(moves.get(i)), e);
+      }
+      nodes += perft(board, depth-1, lists);
+      board.unmakeMove();
+    }
+    return nodes;
+  }
+
+  /**
+   * Counts the leaf nodes of the game tree to a given depth,
+   * counting the subtree of each move from the board on a separate clone, split between threads.
+   * The clones are made on the calling thread before the subtrees are handed to the pool.
+   * @param board the board to count from, which is not changed.
+   * @param depth the number of moves to look ahead.
+   * @param pool the threads to count with.
+   * @return the number of positions reached after exactly depth moves, or at which the game ended sooner.
+   * **/
+  public static long perft(Board board, int depth, ExecutorService pool) throws InterruptedException{
+    if(depth<=1 || board.gameOver()) return perft(board, depth);
+    IntMoveList moves = new IntMoveList();
+    int count = board.generateMoves(moves);
+    List<Future<Long>> subtrees = new ArrayList<Future<Long>>();
+    for(int i = 0; i<count; i++){
+      int move = moves.get(i);
+      Board clone;
+      try{
+        clone = (Board) board.clone();//on this thread, so the pool only ever touches its own copies
+      }catch(CloneNotSupportedException e){
+        throw new IllegalStateException(e);
+      }
+      subtrees.add(pool.submit(() -> {
+        clone.makeMove(move);
+        return perft(clone, depth-1);
+      }));
+    }
+    long nodes = 0;
+    try{
+      for(Future<Long> subtree: subtrees) nodes += subtree.get();
+    }catch(ExecutionException e){
+      throw new IllegalStateException("Perft failed", e.getCause());
+    }
+    return nodes;
+  }
+
+  /**
+   * Returns the board reached by playing a sequence of moves from the start.
+   * @param moves the moves, separated by spaces, each written as start-end, for example "BB1-BC3".
+   * @return the board, with no time used.
+   * @throws ImpossiblePositionException if a move is not legal.
+   * **/
+  public static Board playMoves(String moves) throws ImpossiblePositionException{
+    Board board = new Board(Integer.MAX_VALUE);
+    for(String move: moves.trim().split("\\s+")){
+      if(move.isEmpty()) continue;
+      String[] ends = move.split("-");
+      board.move(Position.valueOf(ends[0]), Position.valueOf(ends[1]), 0);
+    }
+    return board;
+  }
+
+  /**
+   * Counts each stored position to each depth, single threaded and split between threads,
+   * reporting the nodes per second and whether the counts match the golden counts.
+   * Exits with status 1 if any count does not match.
+   * @param args the greatest depth, and the number of threads.
+   * **/
+  public static void main(String[] args) throws Exception{
+    int maxDepth = args.length>0? Integer.parseInt(args[0]): 4;
+    int threads = args.length>1? Integer.parseInt(args[1]): Runtime.getRuntime().availableProcessors();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    boolean ok = true;
+    try{
+      System.out.printf("%-8s %5s %12s %12s %14s %14s%n", "position", "depth", "nodes", "golden", "nodes/s", "nodes/s("+threads+")");
+      for(int p = 0; p<POSITIONS.length; p++){
+        Board board = playMoves(POSITIONS[p][1]);
+        for(int depth = 1; depth<=maxDepth; depth++){
+          long start = System.nanoTime();
+          long nodes = perft(board, depth);
+          long single = System.nanoTime()-start;
+          start = System.nanoTime();
+          long split = perft(board, depth, pool);
+          long parallel = System.nanoTime()-start;
+          String golden = depth<=GOLDEN[p].length? Long.toString(GOLDEN[p][depth-1]): "-";
+          boolean match = split==nodes && (depth>GOLDEN[p].length || nodes==GOLDEN[p][depth-1]);
+          ok &= match;
+          System.out.printf("%-8s %5d %12d %12s %14.0f %14.0f %s%n", POSITIONS[p][0], depth, nodes, golden,
+              nodes*1e9/Math.max(single,1), split*1e9/Math.max(parallel,1), match? "OK": "MISMATCH");
+        }
+      }
+    }finally{
+      pool.shutdown();
+    }
+    if(!ok) System.exit(1);
+  }
+}
@@ -6,15 +6,17 @@ package threeChess;
  * using the typical values, but 40 for the King.
  * **/
 public enum PieceType{
-  PAWN(1),
-  KNIGHT(3),
-  BISHOP(3),
-  ROOK(5),
-  QUEEN(9),
-  KING(40);//worth one more than all the other pieces combined.
+  PAWN(1, pawnSteps()),
+  KNIGHT(3, knightSteps()),
+  BISHOP(3, bishopSteps()),
+  ROOK(5, rookSteps()),
+  QUEEN(9, kingSteps()),//Kings and queens have the same steps, but queens may repeat the one step.
+  KING(40, kingSteps());//worth one more than all the other pieces combined.
 
   /**the utility associated with taking this piece**/
   private final int value;
+  /**the steps this piece may take, built once rather than on every call to getSteps**/
+  private final Direction[][] steps;
   //return arrays of moves for pieceTypes
   private static Direction[][] pawnSteps(){
     return new Direction[][] {{Direction.FORWARD},{Direction.FORWARD,Direction.FORWARD},
@@ -51,9 +53,10 @@ public enum PieceType{
     {Direction.FORWARD},{Direction.BACKWARD},{Direction.LEFT},{Direction.RIGHT}}; //kings and queens
   }
 
-  /**Sets the value of the piece**/
-  private PieceType(int value){
+  /**Sets the value and steps of the piece**/
+  private PieceType(int value, Direction[][] steps){
     this.value = value;
+    this.steps = steps;
   }
 
   /**@return the value of the piece**/
@@ -65,16 +68,11 @@ public enum PieceType{
    * Returns the array of steps that can make legitimate moves.
    * Rooks, Bishops and Queens may iterate one step type in a move.
    * All other pieces may only make one step per move.
+   * The array is shared between calls, so must not be modified.
    * @return an array or arrays of directions where each inner array is a legitimate step.
    * **/
   public Direction[][] getSteps(){
-    switch(this){
-    case PAWN: return pawnSteps();
-    case KNIGHT: return knightSteps();
-    case BISHOP: return bishopSteps();
-    case ROOK: return rookSteps();
-    default: return kingSteps();//Kings and queens have the same steps, but queens may repeat the one step.
-    }
+    return steps;
   }
 
   /**
@@ -40,6 +40,17 @@ public enum Position{
   /**The position's column**/
   private final int column; //0-7
 
+  /**The positions in ordinal order, cached since values() copies the array on every call**/
+  private static final Position[] VALUES = values();
+  /**The neighbour of each position in each direction, indexed by ordinal and then direction, or null if off the board**/
+  private static final Position[][] NEIGHBOURS = new Position[VALUES.length][Direction.values().length];
+
+  static{
+    for(Position p: VALUES)
+      for(Direction d: Direction.values())
+        NEIGHBOURS[p.ordinal()][d.ordinal()] = p.findNeighbour(d);
+  }
+
   /**
    * Create a position with the specified colour, row and column
    * @param colour the section of the board the position is in.
@@ -64,13 +75,7 @@ public enum Position{
    * **/
   public static Position get(Colour colour, int row, int column) throws ImpossiblePositionException{
     int index= row+4*column;
-    if(index>=0 && index<32){
-      switch(colour){
-        case BLUE: return Position.values()[index];
-        case GREEN: return Position.values()[index+32];
-        case RED: return Position.values()[index+64];           
-      }
-    }
+    if(index>=0 && index<32) return VALUES[index+32*colour.ordinal()];
     throw new ImpossiblePositionException("No such position."); 
   }
 
@@ -83,22 +88,42 @@ public enum Position{
    * or moving of the side of the board.
    * */
   public Position neighbour(Direction direction) throws ImpossiblePositionException{
+    Position next = tryNeighbour(direction);
+    if(next==null) throw new ImpossiblePositionException("Moved off board");
+    return next;
+  }
+
+  /**
+   * Gets the neighbouring cell in the given direction, as neighbour does,
+   * but signals moving off the board by returning null rather than throwing an exception,
+   * so it is cheap to call in loops that reach the edge of the board.
+   * @return the position in the specified direction, or null if it is off the board.
+   * */
+  public Position tryNeighbour(Direction direction){
+    return NEIGHBOURS[ordinal()][direction.ordinal()];
+  }
+
+  /**
+   * Computes the neighbouring cell in the given direction, used to build the neighbour table.
+   * @return the position in the specified direction, or null if it is off the board.
+   * */
+  private Position findNeighbour(Direction direction){
+    int base = 32*colour.ordinal();
     switch(direction){
       case FORWARD:
-        if(row<3) return get(colour, row+1, column);
-        if(column<4) return get(Colour.values()[(colour.ordinal()+1)%3], 3, 7-column);
-        return get(Colour.values()[(colour.ordinal()+2)%3],3,7-column);
+        if(row<3) return VALUES[base+row+1+4*column];
+        if(column<4) return VALUES[32*((colour.ordinal()+1)%3)+3+4*(7-column)];
+        return VALUES[32*((colour.ordinal()+2)%3)+3+4*(7-column)];
       case BACKWARD:
-        if(row==0) throw new ImpossiblePositionException("Moved off board");
-        return get(colour,row-1,column);
+        if(row==0) return null;
+        return VALUES[base+row-1+4*column];
       case LEFT:
-        if(column==0) throw new ImpossiblePositionException("Moved off board");
-        return get(colour,row,column-1);
-      case RIGHT:  
-        if(column==7) throw new ImpossiblePositionException("Moved off board");
-        return get(colour,row,column+1);
-    }  
-    throw new ImpossiblePositionException("Unreachable code?");
+        if(column==0) return null;
+        return VALUES[base+row+4*(column-1)];
+      default://RIGHT
+        if(column==7) return null;
+        return VALUES[base+row+4*(column+1)];
+    }
   }
 
   /**
@@ -0,0 +1,403 @@
+package threeChess;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import threeChess.agents.*;
+
+/**
+ * A benchmark comparing the searches of the agents.
+ * It reports the depth the Best-Reply Search agent and the max^n agent, searching with max^n and with the paranoid search,
+ * complete from the Perft positions in the same time, with the hits, misses and collisions of their transposition tables,
+ * the speedup of the parallel max^n search for each number of threads, up to the number of processors (and at least 2),
+ * both to a fixed depth and in nodes per second and plies completed by iterative deepening in the same time,
+ * the nodes the max^n search visits with each pruning mode and whether the modes choose the same move,
+ * the cost of scoring a max^n leaf with Board.score and with the scan of the board it replaced,
+ * the iterations per second of the mcts agent and the bytes it allocates per iteration,
+ * the iterations per second of its tree parallel search for each number of threads,
+ * how often its root parallel search chooses the move of a long single tree search,
+ * and plays timed games between one BRS agent and two max^n agents, with the BRS agent taking each colour in turn.
+ * Run with "java -cp bin threeChess.SearchBenchmark [millis] [games] [seconds]",
+ * where millis is the time given to each search of the depth comparison (default 1000),
+ * games is the number of games played (default 3, 0 to skip them) and seconds is the time each player has in a game (default 60).
+ * **/
+public class SearchBenchmark{
+
+  /** The depth of the max^n searches timed for the speedup **/
+  private static final int PARALLEL_DEPTH = 3;
+
+  /** The depth of the max^n searches comparing the pruning modes **/
+  private static final int PRUNING_DEPTH = 3;
+
+  /** The number of times each leaf evaluation is timed **/
+  private static final int LEAF_REPEATS = 200000;
+
+  /** The most iterations of each mcts search measured **/
+  private static final int MCTS_ITERATIONS = 5000;
+
+  /** The iterations of the single tree mcts search the other searches are compared with **/
+  private static final int REFERENCE_ITERATIONS = 20000;
+
+  /** The iterations of each tree of the root parallel mcts search compared with the reference **/
+  private static final int AGREEMENT_ITERATIONS = 1000;
+
+  /** The number of threads, and so trees, of the parallel mcts searches compared with the reference **/
+  private static final int AGREEMENT_THREADS = 4;
+
+  /** The number of times each mcts search is compared with the reference from each position **/
+  private static final int AGREEMENT_TRIALS = 5;
+
+  /**
+   * Formats the lookups of a transposition table.
+   * @param table the table.
+   * @return the hits, misses and collisions, each as a percentage of the lookups.
+   * **/
+  private static String lookups(TranspositionTable table){
+    double total = Math.max(table.getHits()+table.getMisses()+table.getCollisions(), 1)/100.0;
+    return String.format("%5.1f/%4.1f/%4.1f", table.getHits()/total, table.getMisses()/total, table.getCollisions()/total);
+  }
+
+  /** Not instantiable **/
+  private SearchBenchmark(){}
+
+  /**
+   * Times the fixed depth max^n search from each Perft position, with a number of threads.
+   * One agent searches every position, emptying its table before each, so the time is not spent allocating tables.
+   * @param threads the number of threads.
+   * @param splitReplies whether the replies to the root moves are split between the threads too.
+   * @param moves filled with the moves chosen.
+   * @return the time taken, in nanoseconds.
+   * **/
+  private static long timeMaxn(int threads, boolean splitReplies, String[] moves) throws Exception{
+    long time = 0;
+    maxN agent = new maxN(PARALLEL_DEPTH);
+    agent.setParallelism(threads, splitReplies);
+    for(int p = 0; p<Perft.POSITIONS.length; p++){
+      Board board = Perft.playMoves(Perft.POSITIONS[p][1]);
+      agent.getTable().clear();
+      long start = System.nanoTime();
+      Position[] move = agent.startMaxn(board);
+      time += System.nanoTime()-start;
+      moves[p] = move[0]+"-"+move[1];
+    }
+    return time;
+  }
+
+  /**
+   * Scores a player as Board.score did before the scores were kept up to date as moves are made,
+   * by adding up the value of the player's pieces at every position and of the pieces the player has taken.
+   * The captured pieces are read through getCaptured, which copies the list the original read directly.
+   * @param board the board.
+   * @param player the player.
+   * @return the score of the player.
+   * **/
+  private static int scanScore(Board board, Colour player){
+    int score = 0;
+    for(Position position: Position.values()){
+      Piece piece = board.getPiece(position);
+      if(piece!=null && piece.getColour()==player) score += piece.getValue();
+    }
+    for(Piece piece: board.getCaptured(player)) score += piece.getValue();
+    return score;
+  }
+
+  /**
+   * Reports the cost of a max^n leaf evaluation, which scores all three players, on the boards one move from each Perft position,
+   * with Board.score and with the scan it replaced, next to the time per node of the fixed depth max^n search.
+   * @param out the stream to report to.
+   * **/
+  private static void measureLeaves(PrintStream out) throws Exception{
+    out.printf("%nmax^n leaf evaluation (three scores) one move from the Perft positions, against the time per node to level %d%n", PARALLEL_DEPTH);
+    out.printf("%-8s %12s %12s %8s %12s %s%n", "position", "score ns", "scan ns", "ratio", "node ns", "scores");
+    maxN agent = new maxN(PARALLEL_DEPTH);
+    for(int pass = 0; pass<2; pass++){//the first pass warms up
+      for(String[] position: Perft.POSITIONS){
+        Board board = Perft.playMoves(position[1]);
+        IntMoveList moves = new IntMoveList();
+        board.generateMoves(moves);
+        Board[] leaves = new Board[moves.size()];
+        for(int m = 0; m<leaves.length; m++){
+          leaves[m] = (Board) board.clone();
+          leaves[m].makeMove(moves.get(m));
+        }
+        int sum = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i<LEAF_REPEATS; i++){
+          Board leaf = leaves[i%leaves.length];
+          sum += leaf.score(Colour.RED)+leaf.score(Colour.GREEN)+leaf.score(Colour.BLUE);
+        }
+        long scored = System.nanoTime()-start;
+        int scanSum = 0;
+        start = System.nanoTime();
+        for(int i = 0; i<LEAF_REPEATS; i++){
+          Board leaf = leaves[i%leaves.length];
+          scanSum += scanScore(leaf, Colour.RED)+scanScore(leaf, Colour.GREEN)+scanScore(leaf, Colour.BLUE);
+        }
+        long scanned = System.nanoTime()-start;
+        agent.getTable().clear();
+        start = System.nanoTime();
+        agent.startMaxn(board);
+        long searched = System.nanoTime()-start;
+        if(pass==0) continue;
+        out.printf("%-8s %12.1f %12.1f %8.1f %12.1f %s%n", position[0], (double) scored/LEAF_REPEATS, (double) scanned/LEAF_REPEATS,
+            (double) scanned/scored, (double) searched/Math.max(agent.getNodeCount(), 1), sum==scanSum? "same": "DIFFERENT");
+      }
+    }
+  }
+
+  /**
+   * Reports the nodes the fixed depth max^n search visits from each Perft position with each pruning mode,
+   * and whether every mode chooses the move chosen without pruning.
+   * The table is emptied before each search, so no mode reuses the work of another.
+   * @param out the stream to report to.
+   * **/
+  private static void comparePruning(PrintStream out) throws Exception{
+    maxN.Pruning[] modes = maxN.Pruning.values();
+    out.printf("%nmax^n to level %d from the Perft positions with each pruning mode%n", PRUNING_DEPTH);
+    out.printf("%-8s", "position");
+    for(maxN.Pruning mode: modes) out.printf(" %12s", mode);
+    out.printf(" %s%n", "moves");
+    maxN agent = new maxN(PRUNING_DEPTH);
+    for(String[] position: Perft.POSITIONS){
+      Board board = Perft.playMoves(position[1]);
+      out.printf("%-8s", position[0]);
+      String unpruned = null;
+      boolean same = true;
+      for(maxN.Pruning mode: modes){
+        agent.setPruning(mode);
+        agent.getTable().clear();
+        Position[] move = agent.startMaxn(board);
+        String chosen = move[0]+"-"+move[1];
+        if(unpruned==null) unpruned = chosen;
+        same &= chosen.equals(unpruned);
+        out.printf(" %12d", agent.getNodeCount());
+      }
+      out.printf(" %s%n", same? "same": "DIFFERENT");
+    }
+  }
+
+  /**
+   * Runs the iterative deepening max^n search from each Perft position for the same time, with a number of threads.
+   * One agent searches every position, emptying its table before each.
+   * @param threads the number of threads.
+   * @param splitReplies whether the replies to the root moves are split between the threads too.
+   * @param millis the time given to each search.
+   * @param plies filled with the number of plies completed from each position.
+   * @return the nodes visited per second, over all the searches.
+   * **/
+  private static double timeIterativeMaxn(int threads, boolean splitReplies, long millis, int[] plies) throws Exception{
+    long time = 0;
+    long nodes = 0;
+    maxN agent = new maxN();
+    agent.setParallelism(threads, splitReplies);
+    for(int p = 0; p<Perft.POSITIONS.length; p++){
+      Board board = Perft.playMoves(Perft.POSITIONS[p][1]);
+      agent.getTable().clear();
+      long start = System.nanoTime();
+      agent.startIterativeMaxn(board, millis);
+      time += System.nanoTime()-start;
+      nodes += agent.getNodeCount();
+      plies[p] = agent.getCompletedDepth()+1;
+    }
+    return nodes*1e9/time;
+  }
+
+  /**
+   * Reports the iterations per second of an mcts search from each Perft position, and the bytes allocated per iteration.
+   * One agent searches every position, so its tree is allocated before the searches measured rather than during them.
+   * The allocation is measured on the calling thread, if the JVM supports it.
+   * @param out the stream to report to.
+   * **/
+  private static void measureMcts(PrintStream out) throws ImpossiblePositionException{
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean threads = bean instanceof com.sun.management.ThreadMXBean?
+      (com.sun.management.ThreadMXBean) bean: null;
+    long thread = Thread.currentThread().getId();
+    mcts agent = new mcts();
+    agent.maxIterations = MCTS_ITERATIONS;
+    for(String[] position: Perft.POSITIONS) agent.getMove(Perft.playMoves(position[1]));//warm up, and allocate the tree
+    out.printf("%nmcts to at most %d iterations from the Perft positions%n", MCTS_ITERATIONS);
+    out.printf("%-8s %10s %12s %14s%n", "position", "iterations", "iterations/s", "bytes/iteration");
+    for(String[] position: Perft.POSITIONS){
+      Board board = Perft.playMoves(position[1]);
+      long before = threads==null? 0: threads.getThreadAllocatedBytes(thread);
+      agent.getMove(board);
+      long bytes = threads==null? 0: threads.getThreadAllocatedBytes(thread)-before;
+      int iterations = agent.getLastIterations();
+      out.printf("%-8s %10d %12.0f %14s%n", position[0], iterations, iterations*1e9/Math.max(agent.getLastIterationNanos(), 1),
+          threads==null? "-": Long.toString(bytes/Math.max(iterations, 1)));
+    }
+    int processors = Runtime.getRuntime().availableProcessors();
+    out.printf("%nmcts tree parallel search to at most %d iterations from the Perft positions, %d processors%n", MCTS_ITERATIONS, processors);
+    out.printf("%7s %12s %8s%n", "threads", "iterations/s", "speedup");
+    double single = 0;
+    for(int count = 1; count<=Math.max(processors, 2); count *= 2){
+      double rate = timeMcts(count);
+      if(count==1) single = rate;
+      out.printf("%7d %12.0f %8.2f%n", count, rate, rate/single);
+    }
+  }
+
+  /**
+   * Runs an mcts search with a new agent, so it does not reuse a tree kept from an earlier search.
+   * @param board the board to search.
+   * @param parallelism how the search uses threads.
+   * @param threads the number of threads.
+   * @param iterations the most iterations run, by each tree in the root parallel search.
+   * @return the move chosen.
+   * **/
+  private static String mctsMove(Board board, mcts.Parallelism parallelism, int threads, int iterations) throws ImpossiblePositionException{
+    mcts agent = new mcts();
+    agent.maxIterations = iterations;
+    agent.setParallelism(parallelism, threads);
+    Position[] move = agent.getMove(board);
+    return move[0]+"-"+move[1];
+  }
+
+  /**
+   * Reports how often the root parallel mcts search chooses the move of a long single tree search from each Perft position,
+   * next to the single tree search with as many iterations as one of its trees and as all of them, and the tree parallel search.
+   * The random numbers of the rollouts cannot be seeded, so each search is run several times and the counts vary a little between runs.
+   * @param out the stream to report to.
+   * **/
+  private static void compareMctsAgreement(PrintStream out) throws ImpossiblePositionException{
+    out.printf("%nmcts moves matching a %d iteration single tree search, of %d searches from each Perft position%n",
+        REFERENCE_ITERATIONS, AGREEMENT_TRIALS);
+    String[] reference = new String[Perft.POSITIONS.length];
+    out.printf("%-6s %7s %10s", "mode", "threads", "iterations");
+    for(int p = 0; p<Perft.POSITIONS.length; p++){
+      reference[p] = mctsMove(Perft.playMoves(Perft.POSITIONS[p][1]), mcts.Parallelism.SINGLE, 1, REFERENCE_ITERATIONS);
+      out.printf(" %8s", Perft.POSITIONS[p][0]);
+    }
+    out.printf(" %8s%n", "total");
+    Object[][] searches = {
+      {mcts.Parallelism.SINGLE, 1, AGREEMENT_ITERATIONS},
+      {mcts.Parallelism.SINGLE, 1, AGREEMENT_THREADS*AGREEMENT_ITERATIONS},
+      {mcts.Parallelism.ROOT, AGREEMENT_THREADS, AGREEMENT_ITERATIONS},
+      {mcts.Parallelism.TREE, AGREEMENT_THREADS, AGREEMENT_THREADS*AGREEMENT_ITERATIONS},
+    };
+    for(Object[] search: searches){
+      mcts.Parallelism parallelism = (mcts.Parallelism) search[0];
+      int threads = (Integer) search[1];
+      int iterations = (Integer) search[2];
+      out.printf("%-6s %7d %10s", parallelism, threads, parallelism==mcts.Parallelism.ROOT? threads+"x"+iterations: Integer.toString(iterations));
+      int total = 0;
+      for(int p = 0; p<Perft.POSITIONS.length; p++){
+        int matches = 0;
+        for(int trial = 0; trial<AGREEMENT_TRIALS; trial++){
+          if(mctsMove(Perft.playMoves(Perft.POSITIONS[p][1]), parallelism, threads, iterations).equals(reference[p])) matches++;
+        }
+        total += matches;
+        out.printf(" %8s", matches+"/"+AGREEMENT_TRIALS);
+      }
+      out.printf(" %8s%n", total+"/"+AGREEMENT_TRIALS*Perft.POSITIONS.length);
+    }
+  }
+
+  /**
+   * Runs the tree parallel mcts search from each Perft position with a number of threads.
+   * The agent searches every position once before the searches timed, to warm up and allocate its tree.
+   * @param threads the number of threads.
+   * @return the iterations per second, over all the searches.
+   * **/
+  private static double timeMcts(int threads) throws ImpossiblePositionException{
+    mcts agent = new mcts();
+    agent.maxIterations = MCTS_ITERATIONS;
+    agent.setParallelism(mcts.Parallelism.TREE, threads);
+    for(String[] position: Perft.POSITIONS) agent.getMove(Perft.playMoves(position[1]));
+    long iterations = 0;
+    long time = 0;
+    for(String[] position: Perft.POSITIONS){
+      agent.getMove(Perft.playMoves(position[1]));
+      iterations += agent.getLastIterations();
+      time += agent.getLastIterationNanos();
+    }
+    return iterations*1e9/Math.max(time, 1);
+  }
+
+  /**
+   * Compares the depth completed by each search in the same time, and plays the games.
+   * @param args the milliseconds per search, the number of games, and the seconds per player in a game.
+   * **/
+  public static void main(String[] args) throws Exception{
+    long millis = args.length>0? Long.parseLong(args[0]): 1000;
+    int games = args.length>1? Integer.parseInt(args[1]): 3;
+    int seconds = args.length>2? Integer.parseInt(args[2]): 60;
+    PrintStream out = System.out;
+    PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+    System.setOut(quiet);//the agents report their moves
+    try{
+      out.printf("%-8s %10s %12s %14s %14s %12s %10s %12s%n", "position", "maxN plies", "maxN nodes",
+          "paranoid plies", "paranoid nodes", "BRS layers", "BRS plies", "BRS nodes");
+      StringBuilder tables = new StringBuilder();
+      for(String[] position: Perft.POSITIONS){
+        Board board = Perft.playMoves(position[1]);
+        maxN maxn = new maxN();
+        maxn.startIterativeMaxn((Board) board.clone(), millis);
+        maxN paranoid = new maxN();
+        paranoid.setMode(maxN.Mode.PARANOID);
+        paranoid.startIterativeMaxn((Board) board.clone(), millis);
+        BRSAgent brs = new BRSAgent();
+        brs.startIterativeBrs((Board) board.clone(), millis);
+        int layers = brs.getCompletedDepth();
+        out.printf("%-8s %10d %12d %14d %14d %12d %10d %12d%n", position[0], maxn.getCompletedDepth()+1, maxn.getNodeCount(),
+            paranoid.getCompletedDepth()+1, paranoid.getNodeCount(), layers, (layers+1)/2+2*(layers/2), brs.getNodeCount());
+        tables.append(String.format("%-8s %16s %16s %16s%n", position[0], lookups(maxn.getTable()), lookups(paranoid.getTable()), lookups(brs.getTable())));
+      }
+      out.printf("%ntransposition table lookups of the searches above, %% hits/misses/collisions%n");
+      out.printf("%-8s %16s %16s %16s%n", "position", "maxN", "paranoid", "BRS");
+      out.print(tables);
+      int processors = Runtime.getRuntime().availableProcessors();
+      String[] sequential = new String[Perft.POSITIONS.length];
+      String[] parallel = new String[Perft.POSITIONS.length];
+      timeMaxn(1, false, sequential);//warm up, so the first timing is not slowed by compilation
+      long single = timeMaxn(1, false, sequential);
+      out.printf("%nmax^n to level %d from the Perft positions, %d processors%n", PARALLEL_DEPTH, processors);
+      out.printf("%7s %6s %10s %8s %s%n", "threads", "split", "seconds", "speedup", "moves");
+      out.printf("%7d %6s %10.2f %8.2f %s%n", 1, "-", single/1e9, 1.0, "-");
+      for(int threads = 2; threads<=Math.max(processors, 2); threads *= 2){
+        for(boolean split: new boolean[]{false, true}){
+          long time = timeMaxn(threads, split, parallel);
+          out.printf("%7d %6s %10.2f %8.2f %s%n", threads, split? "yes": "no", time/1e9, (double) single/time,
+              java.util.Arrays.equals(sequential, parallel)? "same": "DIFFERENT");
+        }
+      }
+      int[] plies = new int[Perft.POSITIONS.length];
+      double singleRate = timeIterativeMaxn(1, false, millis, plies);
+      out.printf("%nmax^n iterative deepening for %d ms from each Perft position%n", millis);
+      out.printf("%7s %6s %12s %8s %s%n", "threads", "split", "nodes/s", "speedup", "plies");
+      out.printf("%7d %6s %12.0f %8.2f %s%n", 1, "-", singleRate, 1.0, java.util.Arrays.toString(plies));
+      for(int threads = 2; threads<=Math.max(processors, 2); threads *= 2){
+        for(boolean split: new boolean[]{false, true}){
+          double rate = timeIterativeMaxn(threads, split, millis, plies);
+          out.printf("%7d %6s %12.0f %8.2f %s%n", threads, split? "yes": "no", rate, rate/singleRate, java.util.Arrays.toString(plies));
+        }
+      }
+      comparePruning(out);
+      measureLeaves(out);
+      measureMcts(out);
+      compareMctsAgreement(out);
+      int[] brsResults = new int[3];//games won, drawn and lost by the BRS agent
+      int[] maxnResults = new int[3];//the same for the max^n agents, counting both in each game
+      for(int game = 0; game<games; game++){
+        Agent[] seats = {new maxN(), new maxN(), new maxN()};
+        int brsSeat = game%3;
+        seats[brsSeat] = new BRSAgent();
+        int[] scores = ThreeChess.play(seats[0], seats[1], seats[2], seconds, quiet, false);
+        for(int seat = 0; seat<3; seat++){
+          int[] results = seat==brsSeat? brsResults: maxnResults;
+          results[1-Integer.signum(scores[seat])]++;
+        }
+        out.println("game "+(game+1)+": BRS as "+Colour.values()[brsSeat]+", scores blue "+scores[0]+" green "+scores[1]+" red "+scores[2]);
+      }
+      if(games>0){
+        out.println("BRS:  won "+brsResults[0]+", drawn "+brsResults[1]+", lost "+brsResults[2]+" of "+games);
+        out.println("maxN: won "+maxnResults[0]+", drawn "+maxnResults[1]+", lost "+maxnResults[2]+" of "+2*games);
+      }
+    }finally{
+      System.setOut(out);
+    }
+  }
+}
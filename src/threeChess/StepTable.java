@@ -0,0 +1,143 @@
+package threeChess;
+
+/**
+ * Precomputed destinations of every step, for each piece type, piece colour and starting position.
+ * The table is built once when the class is loaded, so that checking moves
+ * does not need to walk the board one direction at a time.
+ * For each step type of a piece (in the order given by PieceType.getSteps())
+ * the table holds a ray: the positions reached by taking the step repeatedly.
+ * Rays of Rooks, Bishops and Queens continue until the piece would leave the board,
+ * while all other pieces have rays of at most one position.
+ * The table also holds the rays as masks, and the positions each piece attacks on an empty board and is attacked from,
+ * each mask a set of ordinals packed into two longs (ordinals 0-63, then 64-95), as Board's occupancy masks are.
+ * **/
+class StepTable{
+
+  /** The direction each direction becomes when reversed **/
+  private static final Direction[] REVERSE = {Direction.BACKWARD, Direction.FORWARD, Direction.RIGHT, Direction.LEFT};
+  /** The number of positions on the board **/
+  private static final int SIZE = Position.values().length;
+  /** The rays, indexed by piece type, piece colour, position and step **/
+  private static final Position[][][][][] RAYS = new Position[PieceType.values().length][Colour.values().length][SIZE][][];
+  /** The positions on each ray, indexed as RAYS, with two longs per step **/
+  private static final long[][][][] RAY_MASKS = new long[PieceType.values().length][Colour.values().length][SIZE][];
+  /** The positions a piece attacks on an empty board, indexed by piece type, piece colour and position, as two longs **/
+  private static final long[][][][] ATTACKS = new long[PieceType.values().length][Colour.values().length][SIZE][2];
+  /** The positions from which a piece attacks a position on an empty board, indexed as ATTACKS **/
+  private static final long[][][][] ATTACKED_FROM = new long[PieceType.values().length][Colour.values().length][SIZE][2];
+
+  static{
+    for(PieceType type: PieceType.values())
+      for(Colour colour: Colour.values())
+        for(Position position: Position.values()){
+          Position[][] rays = buildRays(type, colour, position);
+          long[] masks = new long[2*rays.length];
+          for(int s = 0; s<rays.length; s++){
+            for(Position target: rays[s]){
+              masks[2*s+(target.ordinal()>>>6)] |= 1L<<(target.ordinal()&63);
+              if(s>=2 || type!=PieceType.PAWN){//pawns only take diagonally
+                ATTACKS[type.ordinal()][colour.ordinal()][position.ordinal()][target.ordinal()>>>6] |= 1L<<(target.ordinal()&63);
+                ATTACKED_FROM[type.ordinal()][colour.ordinal()][target.ordinal()][position.ordinal()>>>6] |= 1L<<(position.ordinal()&63);
+              }
+            }
+          }
+          RAYS[type.ordinal()][colour.ordinal()][position.ordinal()] = rays;
+          RAY_MASKS[type.ordinal()][colour.ordinal()][position.ordinal()] = masks;
+        }
+  }
+
+  /** Not instantiable **/
+  private StepTable(){}
+
+  /**
+   * Performs one step of a move, as described in Board.step.
+   * @param type the type of the piece being moved
+   * @param colour the colour of the piece being moved
+   * @param step an array of the direction sequence in the step
+   * @param current the starting position of the step.
+   * @param reverse whether the steps out to be reversed (if the piece crosses board section).
+   * @return the position at the end of the step, or null if the step takes the piece off the board.
+   * **/
+  static Position step(PieceType type, Colour colour, Direction[] step, Position current, boolean reverse){
+    for(Direction d: step){
+      if((colour!=current.getColour() && type==PieceType.PAWN) || reverse)//reverse directions for knights
+        d = REVERSE[d.ordinal()];
+      Position next = current.tryNeighbour(d);
+      if(next==null) return null;
+      if(next.getColour()!=current.getColour())//need to reverse directions when switching between sections of the board
+        reverse = true;
+      current = next;
+    }
+    return current;
+  }
+
+  /**
+   * Returns the rays of a piece, one for each of its step types.
+   * The arrays are shared, so must not be modified.
+   * @param type the type of the piece
+   * @param colour the colour of the piece
+   * @param position the position the piece starts from
+   * @return an array with one ray for each step type, each of which may be empty.
+   * **/
+  static Position[][] rays(PieceType type, Colour colour, Position position){
+    return RAYS[type.ordinal()][colour.ordinal()][position.ordinal()];
+  }
+
+  /**
+   * Returns the rays of a piece as masks.
+   * The arrays are shared, so must not be modified.
+   * @param type the type of the piece
+   * @param colour the colour of the piece
+   * @param position the position the piece starts from
+   * @return an array with two longs for each step type, holding the positions on the ray.
+   * **/
+  static long[] rayMasks(PieceType type, Colour colour, Position position){
+    return RAY_MASKS[type.ordinal()][colour.ordinal()][position.ordinal()];
+  }
+
+  /**
+   * Returns the positions a piece could take an enemy piece on if the board were otherwise empty:
+   * every position on its rays, except that pawns only take diagonally.
+   * The array is shared, so must not be modified.
+   * @param type the type of the piece
+   * @param colour the colour of the piece
+   * @param position the position of the piece
+   * @return the positions attacked, as two longs.
+   * **/
+  static long[] attacks(PieceType type, Colour colour, Position position){
+    return ATTACKS[type.ordinal()][colour.ordinal()][position.ordinal()];
+  }
+
+  /**
+   * Returns the positions from which a piece would attack a position if the board were otherwise empty,
+   * the inverse of attacks.
+   * The array is shared, so must not be modified.
+   * @param type the type of the attacking piece
+   * @param colour the colour of the attacking piece
+   * @param position the position attacked
+   * @return the positions of the attackers, as two longs.
+   * **/
+  static long[] attackedFrom(PieceType type, Colour colour, Position position){
+    return ATTACKED_FROM[type.ordinal()][colour.ordinal()][position.ordinal()];
+  }
+
+  /**
+   * Builds the rays of a piece, iterating each step as Board.isLegalMove does.
+   * **/
+  private static Position[][] buildRays(PieceType type, Colour colour, Position start){
+    Direction[][] steps = type.getSteps();
+    int limit = type.getStepReps()>1? SIZE: 1;
+    Position[][] rays = new Position[steps.length][];
+    for(int s = 0; s<steps.length; s++){
+      Position[] ray = new Position[limit];
+      int length = 0;
+      Position tmp = step(type, colour, steps[s], start, false);
+      while(tmp!=null && length<limit){
+        ray[length++] = tmp;
+        tmp = step(type, colour, steps[s], tmp, tmp.getColour()!=start.getColour());
+      }
+      rays[s] = java.util.Arrays.copyOf(ray, length);
+    }
+    return rays;
+  }
+}
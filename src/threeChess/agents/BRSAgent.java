@@ -0,0 +1,345 @@
+package threeChess.agents;
+
+import threeChess.*;
+
+import java.util.Arrays;
+
+/**
+ * An agent using Best-Reply Search (BRS).
+ * Rather than letting both opponents reply to each of its moves, as max^n and paranoid search do,
+ * BRS lets only the opponent with the strongest reply move at each opponent layer,
+ * so a round of the game costs about b+b nodes rather than b*b*b, and the search reaches much deeper.
+ * The board has no pass move, so the other opponent plays the move it would search first
+ * (its most valuable capture, or its first legal move), as in the BRS+ variant.
+ * The two opponents are taken to minimise the agent's score, and the tree is searched with alpha-beta pruning,
+ * trying the best move found by earlier searches and then captures first, to a fixed depth in untimed games
+ * and by iterative deepening against the clock in timed games.
+ * Depths are counted in layers, where the agent's moves and the opponents' best replies are a layer each.
+ * **/
+public class BRSAgent extends Agent{
+
+  private static final String name = "BRS";
+  /** The time left, in milliseconds, that the game gives each player when it is untimed **/
+  private static final int UNTIMED = 1;
+  /** The number of moves the time left is shared between **/
+  private static final int MOVES_TO_PLAN = 50;
+  /** The most time spent on one move **/
+  private static final long MAX_MOVE_MILLIS = 10000;
+  /** The deepest layer iterative deepening searches to **/
+  private static final int MAX_DEPTH = 30;
+  /** Results of positions already searched, kept between moves **/
+  private final TranspositionTable table = new TranspositionTable(20);
+  /** Reusable lists of packed moves, two for each layer of the tree **/
+  private IntMoveList[] layerMoves = new IntMoveList[0];
+  /** The number of layers searched in untimed games **/
+  private int searchDepth = 4;
+  /** The number of layers the current search scores positions after **/
+  private int depthLimit = 4;
+  /** The player the search is maximising the score of **/
+  private Colour rootPlayer = Colour.BLUE;
+  /** The System.nanoTime() at which the current search must stop **/
+  private long deadline = Long.MAX_VALUE;
+  /** Set when the deadline passes, abandoning the current iteration **/
+  private boolean outOfTime = false;
+  /** The number of nodes visited in the current search **/
+  private int nodes = 0;
+  /** The deepest layer the last search completed **/
+  private int completedDepth = 0;
+
+  /**
+   * A no argument constructor,
+   * required for tournament management.
+   * **/
+  public BRSAgent(){
+  }
+
+  /**
+   * Creates an agent that searches to a given depth in untimed games.
+   * @param searchDepth the number of layers to search, where the agent's moves are layer 1.
+   * **/
+  public BRSAgent(int searchDepth){
+    this.searchDepth = searchDepth;
+  }
+
+  /**
+   * Play a move in the game.
+   * The agent is given a Board Object representing the position of all pieces,
+   * the history of the game and whose turn it is.
+   * They respond with a move represented by a pair (two element array) of positions:
+   * the start and the end position of the move.
+   * @param board The representation of the game state.
+   * @return a two element array of Position objects, where the first element is the
+   * current position of the piece to be moved, and the second element is the
+   * position to move that piece to.
+   * **/
+  public Position[] playMove(Board board){
+    int time = board.getTimeLeft(board.getTurn());
+    if(time<=UNTIMED) return startBrs(board);//no clock, so search to the fixed depth
+    return startIterativeBrs(board, Math.min(time/MOVES_TO_PLAN, MAX_MOVE_MILLIS));
+  }
+
+  /**
+   * Searches to the fixed depth.
+   * @param board the board to move from, which is left as it was found.
+   * @return the best move found, or null if there are no legal moves.
+   * **/
+  public Position[] startBrs(Board board){
+    table.newSearch();
+    rootPlayer = board.getTurn();
+    deadline = Long.MAX_VALUE;
+    outOfTime = false;
+    nodes = 0;
+    depthLimit = searchDepth;
+    IntMoveList actions = movesAt(0);
+    board.generateMoves(actions);
+    MoveOrdering.orderCaptures(actions);
+    MoveOrdering.moveToFront(actions, table.getBestMove(positionKey(board)));
+    int bestMove = searchRoot(board, actions, null);
+    completedDepth = searchDepth;
+    return bestMove==0? null: MoveCode.toPositions(bestMove);
+  }
+
+  /**
+   * Searches with iterative deepening, to 1, 2, 3 layers and so on until a deadline.
+   * Each iteration searches the root moves in order of their values in the previous iteration.
+   * An iteration that runs out of time is abandoned, and the best move of the last completed iteration is returned.
+   * @param board the board to move from, which is left as it was found.
+   * @param budget the number of milliseconds to search for.
+   * @return the best move found by the deepest completed search, or null if there are no legal moves.
+   * **/
+  public Position[] startIterativeBrs(Board board, long budget){
+    table.newSearch();
+    rootPlayer = board.getTurn();
+    long startTime = System.nanoTime();
+    deadline = startTime+budget*1000000L;
+    outOfTime = false;
+    nodes = 0;
+    IntMoveList actions = movesAt(0);
+    board.generateMoves(actions);
+    MoveOrdering.orderCaptures(actions);
+    MoveOrdering.moveToFront(actions, table.getBestMove(positionKey(board)));
+    if(actions.size()==0) return null;
+    int[] rootScores = new int[actions.size()];
+    int bestMove = actions.get(0);
+    completedDepth = 0;
+    for(int depth = 1; depth<=MAX_DEPTH; depth++){
+      depthLimit = depth;
+      int move = searchRoot(board, actions, rootScores);
+      if(outOfTime) break;
+      bestMove = move;
+      completedDepth = depth;
+      MoveOrdering.sortByScore(actions, rootScores);
+      if(System.nanoTime()-startTime>(deadline-startTime)/2) break;//the next iteration would not finish
+    }
+    deadline = Long.MAX_VALUE;
+    return MoveCode.toPositions(bestMove);
+  }
+
+  /** @return the number of layers the last search completed. **/
+  public int getCompletedDepth(){return completedDepth;}
+
+  /** @return the number of nodes visited by the last search. **/
+  public int getNodeCount(){return nodes;}
+
+  /** @return the transposition table of the agent, for its hit, miss and collision counters. **/
+  public TranspositionTable getTable(){return table;}
+
+  /**
+   * Searches every root move to the current depth limit.
+   * Of moves with equal values, the first searched is chosen.
+   * @param board the board to move from.
+   * @param actions the legal moves of the agent.
+   * @param rootScores if not null, filled with the value of each move, or a bound on it below the best value, to order the next iteration.
+   * @return the best move, or 0 if there are no moves or the search ran out of time.
+   * **/
+  private int searchRoot(Board board, IntMoveList actions, int[] rootScores){
+    int alpha = Integer.MIN_VALUE;
+    int bestMove = 0;
+    for(int a = 0; a<actions.size(); a++){
+      int action = actions.get(a);
+      if(!make(board, action)) continue;
+      int value = replyLayer(board, 1, alpha, Integer.MAX_VALUE);
+      board.unmakeMove();
+      if(outOfTime) return 0;
+      if(rootScores!=null) rootScores[a] = value;
+      if(value>alpha){
+        alpha = value;
+        bestMove = action;
+      }
+    }
+    table.store(positionKey(board), depthLimit, alpha, TranspositionTable.EXACT, bestMove);
+    return bestMove;
+  }
+
+  /**
+   * Searches a layer where the agent is to move.
+   * @param board the board, which is left as it was found.
+   * @param layer the number of layers above this one.
+   * @param alpha the score the agent is already sure of.
+   * @param beta the score the opponents can already hold the agent to.
+   * @return the agent's score, or a bound on it outside alpha and beta.
+   * **/
+  private int moveLayer(Board board, int layer, int alpha, int beta){
+    if(tick()) return 0;
+    if(layer>=depthLimit || board.gameOver()) return board.score(rootPlayer);
+    long key = positionKey(board);
+    int slot = table.probe(key, depthLimit-layer);
+    if(slot>=0){
+      int value = table.getValue(slot);
+      int bound = table.getBound(slot);
+      if(bound==TranspositionTable.EXACT
+          || (bound==TranspositionTable.LOWER && value>=beta)
+          || (bound==TranspositionTable.UPPER && value<=alpha)) return value;
+    }
+    IntMoveList actions = movesAt(2*layer);
+    board.generateMoves(actions);
+    MoveOrdering.orderCaptures(actions);
+    MoveOrdering.moveToFront(actions, table.getBestMove(key));
+    int startAlpha = alpha;
+    int best = Integer.MIN_VALUE;
+    int bestMove = 0;
+    for(int a = 0; a<actions.size() && alpha<beta; a++){
+      int action = actions.get(a);
+      if(!make(board, action)) continue;
+      int value = replyLayer(board, layer+1, alpha, beta);
+      board.unmakeMove();
+      if(outOfTime) return 0;
+      if(value>best){
+        best = value;
+        bestMove = action;
+        alpha = Math.max(alpha, value);
+      }
+    }
+    if(bestMove==0) return board.score(rootPlayer);//no legal moves
+    int bound = best<=startAlpha? TranspositionTable.UPPER: best>=beta? TranspositionTable.LOWER: TranspositionTable.EXACT;
+    table.store(key, depthLimit-layer, best, bound, bestMove);
+    return best;
+  }
+
+  /**
+   * Searches a layer of the opponents' replies, choosing the single reply that is worst for the agent.
+   * Each opponent in turn searches all its moves, while the other plays the move it would search first,
+   * so the layer is two moves deep, and the agent is to move again after it.
+   * @param board the board, with the first opponent to move, which is left as it was found.
+   * @param layer the number of layers above this one.
+   * @param alpha the score the agent is already sure of.
+   * @param beta the score the opponents can already hold the agent to.
+   * @return the agent's score, or a bound on it outside alpha and beta.
+   * **/
+  private int replyLayer(Board board, int layer, int alpha, int beta){
+    if(tick()) return 0;
+    if(layer>=depthLimit || board.gameOver()) return board.score(rootPlayer);
+    IntMoveList first = movesAt(2*layer);
+    IntMoveList second = movesAt(2*layer+1);
+    board.generateMoves(first);
+    if(first.size()==0) return board.score(rootPlayer);
+    MoveOrdering.orderCaptures(first);
+    int best = Integer.MAX_VALUE;
+    for(int a = 0; a<first.size() && alpha<beta; a++){//the first opponent replies, the second plays its first move
+      if(!make(board, first.get(a))) continue;
+      int value = afterReply(board, layer, alpha, beta, second);
+      board.unmakeMove();
+      if(outOfTime) return 0;
+      if(value<best){
+        best = value;
+        beta = Math.min(beta, value);
+      }
+    }
+    if(alpha<beta && make(board, first.get(0))){//the second opponent replies, after the first plays its first move
+      if(!board.gameOver()){
+        board.generateMoves(second);
+        MoveOrdering.orderCaptures(second);
+        for(int a = 1; a<second.size() && alpha<beta; a++){//the first move of each was searched above
+          if(!make(board, second.get(a))) continue;
+          int value = moveLayer(board, layer+1, alpha, beta);
+          board.unmakeMove();
+          if(outOfTime) break;
+          if(value<best){
+            best = value;
+            beta = Math.min(beta, value);
+          }
+        }
+      }
+      board.unmakeMove();
+      if(outOfTime) return 0;
+    }
+    return best;
+  }
+
+  /**
+   * Scores the position after the first opponent's move, letting the second opponent play the move it would search first.
+   * @param board the board, with the second opponent to move, which is left as it was found.
+   * @param layer the layer of the replies.
+   * @param alpha the score the agent is already sure of.
+   * @param beta the score the opponents can already hold the agent to.
+   * @param second a list to generate the second opponent's moves in.
+   * @return the agent's score, or a bound on it outside alpha and beta.
+   * **/
+  private int afterReply(Board board, int layer, int alpha, int beta, IntMoveList second){
+    if(board.gameOver()) return board.score(rootPlayer);
+    board.generateMoves(second);
+    if(second.size()==0) return board.score(rootPlayer);
+    MoveOrdering.orderCaptures(second);
+    if(!make(board, second.get(0))) return board.score(rootPlayer);
+    int value = moveLayer(board, layer+1, alpha, beta);
+    board.unmakeMove();
+    return value;
+  }
+
+  /**
+   * Counts a node, checking the clock every 1024 nodes.
+   * @return true if the current search has run out of time.
+   * **/
+  private boolean tick(){
+    if((++nodes&1023)==0 && System.nanoTime()>deadline) outOfTime = true;
+    return outOfTime;
+  }
+
+  /**
+   * Makes a generated move.
+   * @return true if the move was made.
+   * **/
+  private static boolean make(Board board, int move){
+    try{
+      board.makeMove(move);
+      return true;
+    }catch(ImpossiblePositionException e){
+      return false;
+    }
+  }
+
+  /**
+   * Returns the key used for a position in the transposition table.
+   * The agent's score includes the value of the pieces it has captured, which the board's hash key does not,
+   * so it is mixed in, along with the agent's colour.
+   * @param board the board.
+   * @return the key of the position.
+   * **/
+  private long positionKey(Board board){
+    return board.hashKey()^board.score(rootPlayer)*0x9E3779B97F4A7C15L^(rootPlayer.ordinal()+1)*0xBF58476D1CE4E5B9L;
+  }
+
+  /**
+   * @param index the index of the list, two for each layer.
+   * @return the reusable move list for the index.
+   * **/
+  private IntMoveList movesAt(int index){
+    if(index>=layerMoves.length) layerMoves = Arrays.copyOf(layerMoves, index+1);
+    if(layerMoves[index]==null) layerMoves[index] = new IntMoveList();
+    return layerMoves[index];
+  }
+
+  /**
+   * @return the Agent's name, for annotating game description.
+   * **/
+  public String toString(){return name;}
+
+  /**
+   * Displays the final board position to the agent,
+   * if required for learning purposes.
+   * Other a default implementation may be given.
+   * @param finalBoard the end position of the board
+   * **/
+  public void finalBoard(Board finalBoard){}
+
+}
@@ -0,0 +1,79 @@
+package threeChess.agents;
+
+import threeChess.IntMoveList;
+import threeChess.MoveCode;
+
+/**
+ * The move ordering shared by the max^n and BRS searches.
+ * Moves are packed as in MoveCode, and every ordering is a stable insertion sort done in place,
+ * so ordering a list allocates nothing and moves that tie keep the order they were generated in.
+ */
+final class MoveOrdering {
+
+    /** Not instantiable. */
+    private MoveOrdering(){}
+
+    /**
+     * Orders captures first, taking the most valuable pieces with the least valuable first,
+     * keeping the other moves in their current order.
+     * @param actions the moves to order.
+     */
+    static void orderCaptures(IntMoveList actions){
+        for(int i = 1; i < actions.size(); i++){
+            int move = actions.get(i);
+            int order = captureOrder(move);
+            int j = i;
+            for(; j > 0 && captureOrder(actions.get(j - 1)) < order; j--){
+                actions.set(j, actions.get(j - 1));
+            }
+            actions.set(j, move);
+        }
+    }
+
+    /**
+     * @param move a packed move.
+     * @return 0 if the move is not a capture, and otherwise more the more valuable the piece taken and the less valuable the piece moved.
+     */
+    static int captureOrder(int move){
+        if(!MoveCode.isCapture(move)){
+            return 0;
+        }
+        return 64 * MoveCode.getCaptured(move).getValue() + 64 - MoveCode.getMoved(move).getValue();
+    }
+
+    /**
+     * Sorts moves by decreasing score, keeping moves with equal scores in their current order.
+     * @param actions the moves to sort.
+     * @param scores the score of each move, sorted along with the moves.
+     */
+    static void sortByScore(IntMoveList actions, int[] scores){
+        for(int i = 1; i < actions.size(); i++){
+            int move = actions.get(i);
+            int score = scores[i];
+            int j = i;
+            for(; j > 0 && scores[j - 1] < score; j--){
+                actions.set(j, actions.get(j - 1));
+                scores[j] = scores[j - 1];
+            }
+            actions.set(j, move);
+            scores[j] = score;
+        }
+    }
+
+    /**
+     * Moves a move to the front of a list, keeping the other moves in order.
+     * @param actions the moves.
+     * @param move the move to search first, which is ignored if it is not in the list.
+     */
+    static void moveToFront(IntMoveList actions, int move){
+        for(int i = 0; i < actions.size(); i++){
+            if(actions.get(i) == move){
+                for(int j = i; j > 0; j--){
+                    actions.set(j, actions.get(j - 1));
+                }
+                actions.set(0, move);
+                return;
+            }
+        }
+    }
+}
@@ -14,6 +14,9 @@ public class RandomAgent extends Agent{
   
   private static final String name = "Random";
   private static final Random random = new Random();
+  /** Reusable buffers for the start and end positions of the legal moves **/
+  private final Position[] starts = new Position[Board.MAX_MOVES];
+  private final Position[] ends = new Position[Board.MAX_MOVES];
 
 
   /**
@@ -35,22 +38,10 @@ public class RandomAgent extends Agent{
    * position to move that piece to.
    * **/
   public Position[] playMove(Board board){
-    Position[] pieces = board.getPositions(board.getTurn()).toArray(new Position[0]);
-    Position start = pieces[0];
-    Position end = pieces[0]; //dummy illegal move
-    while (!board.isLegalMove(start, end)){
-      start = pieces[random.nextInt(pieces.length)];
-      Piece mover = board.getPiece(start);
-      Direction[][] steps = mover.getType().getSteps();
-      Direction[] step = steps[random.nextInt(steps.length)];
-      int reps = 1 + random.nextInt(mover.getType().getStepReps());
-      end = start;
-      try{
-        for(int i = 0; i<reps; i++)
-          end = board.step(mover, step, end, start.getColour()!=end.getColour());
-      }catch(ImpossiblePositionException e){}
-    }
-    return new Position[] {start,end};
+    int count = board.generateMoves(starts, ends);
+    if(count==0) return null;//no legal moves
+    int move = random.nextInt(count);
+    return new Position[] {starts[move],ends[move]};
   }
 
   /**
@@ -3,7 +3,6 @@ package threeChess.agents;
 import threeChess.*;
 import java.util.concurrent.TimeUnit;
 import java.util.ArrayList;
-import java.util.Arrays;
 
 public class RandomAttackAgent extends Agent {
 
@@ -37,14 +36,11 @@ public class RandomAttackAgent extends Agent {
     }
   }
 
-  public static ArrayList<Position> enemyAttackPositions = new ArrayList<Position>();
-
   public RandomAttackAgent() {
   }
 
   public Position[] playMove(Board board) {
     Colour player = board.getTurn();
-    enemyAttackPositions = getEnemyAttackPositions(board, player);
 
     // -----Initial setup
     if (board.getMoveCount() <= 15) {
@@ -121,45 +117,32 @@ public class RandomAttackAgent extends Agent {
   }
 
   public static Position[] randomAttack(Board board) {
-    Colour playerCol = board.getTurn();
-    Position[] allPositions = board.getPositions(playerCol).toArray(new Position[0]);
     Position start = null;
     Position end = null;
     Position legalStart = null;
     Position legalEnd = null;
     // System.out.println("The current utility is: "+ utility(board, playerCol));
 
-    if (checkAttack(board)[0] != null) {
-      start = checkAttack(board)[0];
-      end = checkAttack(board)[1];
+    Position[] attack = checkAttack(board);
+    if (attack[0] != null) {
+      start = attack[0];
+      end = attack[1];
       System.out.println("Now attacking");
       System.out.println("Moving: [" + start.toString() + ", " + end.toString() + " ]");
       return new Position[] { start, end };
     }
     // if there is no attack option available
-    for (Position position : allPositions) {
-      Piece thisPiece = board.getPiece(position);
-      start = position;
-      PieceType pieceType = thisPiece.getType();
-      int stepRep = pieceType.getStepReps();
-      Direction[][] legitSteps = pieceType.getSteps();
-      for (Direction[] step : legitSteps) {
-        end = start;
-        for (int i = 0; i < stepRep; i++) {
-          try {
-            end = board.step(thisPiece, step, end);
-            if (board.isLegalMove(start, end)) {
-              legalStart = start;
-              legalEnd = end;
-            }
-            if (board.isLegalMove(start, end) && !enemyAttackPositions.contains(end)) { // find a position where the
-                                                                                        // enemy cannot attack
-              System.out.println("Moving: [" + start.toString() + ", " + end.toString() + " ]");
-              return new Position[] { start, end };
-            }
-          } catch (Exception e) {
-          }
-        }
+    Position[] starts = new Position[Board.MAX_MOVES];
+    Position[] ends = new Position[Board.MAX_MOVES];
+    int count = board.generateMoves(starts, ends);
+    for (int i = 0; i < count; i++) {
+      start = starts[i];
+      end = ends[i];
+      legalStart = start;
+      legalEnd = end;
+      if (!isEnemyAttacked(board, board.getTurn(), end)) { // find a position where the enemy cannot attack
+        System.out.println("Moving: [" + start.toString() + ", " + end.toString() + " ]");
+        return new Position[] { start, end };
       }
     }
     System.out.println("Move from here!");
@@ -171,38 +154,24 @@ public class RandomAttackAgent extends Agent {
   public static Position[] checkAttack(Board board) {
     Colour playerCol = board.getTurn();
     int curScore = board.score(playerCol);
-    Position[] allPositions = board.getPositions(playerCol).toArray(new Position[0]);
     Position start = null;
     Position end = null;
     int highestScore = 0;
 
-    for (Position position : allPositions) {
-
-      Piece thisPiece = board.getPiece(position);
-      PieceType pieceType = thisPiece.getType();
-      int stepRep = pieceType.getStepReps();
-      Direction[][] legitSteps = pieceType.getSteps();
-      for (Direction[] step : legitSteps) {
-        Position s = position;
-        Position e = null;
-        for (int i = 0; i < stepRep; i++) {
-          try {
-            e = board.step(thisPiece, step, s);
-            if (board.isLegalMove(s, e)) {
-              Board copyBoard = (Board) board.clone();
-              copyBoard.move(s, e);
-              if (copyBoard.score(playerCol) > curScore && copyBoard.score(playerCol) > highestScore) {
-                start = s;
-                end = e;
-                highestScore = copyBoard.score(playerCol);
-                break;
-              }
-            }
-          } catch (Exception exc) {
-            break;
-          }
+    Position[] starts = new Position[Board.MAX_MOVES];
+    Position[] ends = new Position[Board.MAX_MOVES];
+    int count = board.generateMoves(starts, ends);
+    for (int i = 0; i < count; i++) {
+      try {
+        board.makeMove(starts[i], ends[i]);
+        int score = board.score(playerCol);
+        board.unmakeMove();
+        if (score > curScore && score > highestScore) {
+          start = starts[i];
+          end = ends[i];
+          highestScore = score;
         }
-
+      } catch (Exception exc) {
       }
     }
     if (start == null) {
@@ -219,16 +188,15 @@ public class RandomAttackAgent extends Agent {
     Position mostVulnerable = null;
     int vulnerability = 0;
 
-    for (Position enemyAttack : enemyAttackPositions) {
-      try {
-        if (board.getPiece(enemyAttack).getColour() == player
-            && board.getPiece(enemyAttack).getValue() > vulnerability) {
-          vulnerability = board.getPiece(enemyAttack).getValue();
-          mostVulnerable = enemyAttack;
-        }
-      } catch (Exception e) {
+    Position[] positions = new Position[Board.MAX_PIECES];
+    int count = board.getPositions(player, positions);
+    for (int i = 0; i < count; i++) {
+      Position enemyAttack = positions[i];
+      if (isEnemyAttacked(board, player, enemyAttack)
+          && board.getPiece(enemyAttack).getValue() > vulnerability) {
+        vulnerability = board.getPiece(enemyAttack).getValue();
+        mostVulnerable = enemyAttack;
       }
-
     }
 
     positionValue pv = new positionValue(mostVulnerable, vulnerability);
@@ -240,24 +208,14 @@ public class RandomAttackAgent extends Agent {
   }
 
   public static Position[] findSafePosition(Board board, Colour player, Position position) {
-    Direction[][] steps = board.getPiece(position).getType().getSteps();
-    int stepReps = board.getPiece(position).getType().getStepReps();
-    Piece p = board.getPiece(position);
     Position start = position;
     Position safeEnd = null;
-    for (Direction[] step : steps) {
-      Position end = start;
-      for (int i = 0; i < stepReps; i++) {
-        try {
-          end = board.step(p, step, end);
-          if (board.isLegalMove(start, end)) {
-            if (!enemyAttackPositions.contains(end)) {
-              safeEnd = end;
-            }
-          }
-          break;
-        } catch (Exception e) {
-        }
+    Position[] starts = new Position[Board.MAX_MOVES];
+    Position[] ends = new Position[Board.MAX_MOVES];
+    int count = board.generateMoves(starts, ends);
+    for (int i = 0; i < count; i++) {
+      if (starts[i] == start && !isEnemyAttacked(board, player, ends[i])) {
+        safeEnd = ends[i];
       }
     }
     if(safeEnd == null) return null;
@@ -281,60 +239,24 @@ public class RandomAttackAgent extends Agent {
 
   public static ArrayList<Position> getEnemyAttackPositions(Board board, Colour player) {
     ArrayList<Position> enemyAttPositions = new ArrayList<Position>();
-    Colour[] enemies = getEnemies(player);
-    ArrayList<Position[]> enemyPositions = new ArrayList<Position[]>();
-    enemyPositions.add(board.getPositions(enemies[0]).toArray(new Position[0]));
-    enemyPositions.add(board.getPositions(enemies[1]).toArray(new Position[0]));
-    for (Position[] enemyPosition : enemyPositions) {
-      for (Position position : enemyPosition) {
-        Position start = position;
-        Piece p = board.getPiece(position);
-        int stepRep = p.getType().getStepReps();
-        Direction[][] steps = p.getType().getSteps();
-        if (p.getType() != PieceType.PAWN) { // if not a PAWN, it attacks everything on its path
-          for (Direction[] step : steps) {
-            Position end = start;
-            for (int i = 0; i < stepRep; i++) {
-              try {
-                end = board.step(p, step, end);
-                if (board.getPiece(end) == null) {
-                  if (!enemyAttPositions.contains(end)) {
-                    // System.out.println(end);
-                    enemyAttPositions.add(end);
-                  }
-
-                } else if (board.getPiece(end) != null) {
-                  enemyAttPositions.add(end);
-                  break;
-                }
-
-              } catch (Exception e) {
-              }
-            }
-          }
-        } else {
-          for (Direction[] step : steps) { // if it is a PAWN, there's special consideration
-            Position end = start;
-            Direction[] pawnForward = new Direction[] { Direction.FORWARD };
-            Direction[] pawnForward2 = new Direction[] { Direction.FORWARD, Direction.FORWARD };
-            if (!Arrays.equals(step, pawnForward) && !Arrays.equals(step, pawnForward2)) {
-              try {
-                end = board.step(p, step, end);
-                if (!enemyAttPositions.contains(end)) {
-                  enemyAttPositions.add(end);
-                }
-              } catch (Exception e) {
-              }
-            }
-          }
-        }
-
+    for (Position position : Position.values()) {
+      if (isEnemyAttacked(board, player, position)) {
+        enemyAttPositions.add(position);
       }
     }
-
     return enemyAttPositions;
   }
 
+  // Check whether either enemy of the player could take a piece at the position
+  public static boolean isEnemyAttacked(Board board, Colour player, Position position) {
+    for (Colour enemy : Colour.values()) {
+      if (enemy != player && board.isAttacked(position, enemy)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public String toString() {
     return name;
   }
@@ -0,0 +1,229 @@
+package threeChess.agents;
+
+/**
+ * A fixed size table of searched positions, so a search can reuse the result for a position
+ * it reaches again by a different order of moves.
+ * Each entry holds a position key, the utility vector {RED, GREEN, BLUE} found for it,
+ * the depth it was searched to and the best move found (packed as in MoveCode).
+ * A two-player search stores a single value in place of the utility vector, with whether it is exact
+ * or only a lower or upper bound on the value of the position.
+ * The table has a power of two number of slots, and each key maps to one slot.
+ * When two positions map to the same slot, the one searched deeper is kept,
+ * unless the entry in the slot is left over from an earlier search.
+ * Entries are stored in parallel arrays, so the table allocates nothing after it is created.
+ * The table is not thread safe.
+ */
+public class TranspositionTable {
+
+    /** The stored value is the value of the position. */
+    public static final int EXACT = 0;
+    /** The value of the position is at least the stored value. */
+    public static final int LOWER = 1;
+    /** The value of the position is at most the stored value. */
+    public static final int UPPER = 2;
+
+    private final long[] keys;
+    private final int[] utilities;  //three per slot, {RED, GREEN, BLUE}
+    private final int[] moves;
+    private final byte[] depths;  //the depth searched plus one, or 0 if the slot is empty
+    private final byte[] bounds;  //whether the stored value is exact or a bound
+    private final short[] ages;  //the search each entry was stored in
+    private final int mask;
+    private short age = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long collisions = 0;
+
+    /**
+     * Creates an empty table.
+     * @param bits the table has 2^bits slots.
+     */
+    public TranspositionTable(int bits) {
+        if (bits < 1 || bits > 28) {
+            throw new IllegalArgumentException("Table size must be between 2^1 and 2^28 slots.");
+        }
+        int size = 1 << bits;
+        mask = size - 1;
+        keys = new long[size];
+        utilities = new int[3 * size];
+        moves = new int[size];
+        depths = new byte[size];
+        bounds = new byte[size];
+        ages = new short[size];
+    }
+
+    /**
+     * Marks the start of a new search, so entries from earlier searches may be replaced by shallower ones.
+     */
+    public void newSearch() {
+        age++;
+    }
+
+    /**
+     * Looks up a position.
+     * A lookup is a hit if the position is in the table searched to at least the given depth,
+     * a collision if the slot holds a different position, and otherwise a miss.
+     * @param key the position key.
+     * @param depth the depth the position needs to have been searched to.
+     * @return the slot holding the position, or -1 if it is not there to the required depth.
+     */
+    public int probe(long key, int depth) {
+        int slot = (int) key & mask;
+        if (depths[slot] == 0) {
+            misses++;
+            return -1;
+        }
+        if (keys[slot] != key) {
+            collisions++;
+            return -1;
+        }
+        if (depths[slot] - 1 < depth) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        return slot;
+    }
+
+    /**
+     * Gets the best move stored for a position, whatever depth it was searched to.
+     * This does not change the counters.
+     * @param key the position key.
+     * @return the packed best move, or 0 if the position is not in the table.
+     */
+    public int getBestMove(long key) {
+        int slot = (int) key & mask;
+        return depths[slot] != 0 && keys[slot] == key ? moves[slot] : 0;
+    }
+
+    /**
+     * @param slot a slot returned by probe.
+     * @return a new array holding the utility vector {RED, GREEN, BLUE} stored in the slot.
+     */
+    public int[] getUtilities(int slot) {
+        return new int[] { utilities[3 * slot], utilities[3 * slot + 1], utilities[3 * slot + 2] };
+    }
+
+    /**
+     * @param slot a slot returned by probe.
+     * @return the single value stored in the slot by a two-player search.
+     */
+    public int getValue(int slot) {
+        return utilities[3 * slot];
+    }
+
+    /**
+     * @param slot a slot returned by probe.
+     * @return EXACT, LOWER or UPPER, for whether the value stored in the slot is exact or a bound.
+     */
+    public int getBound(int slot) {
+        return bounds[slot];
+    }
+
+    /**
+     * @param slot a slot returned by probe.
+     * @return the packed best move stored in the slot.
+     */
+    public int getMove(int slot) {
+        return moves[slot];
+    }
+
+    /**
+     * @param slot a slot returned by probe.
+     * @return the depth the position in the slot was searched to.
+     */
+    public int getDepth(int slot) {
+        return depths[slot] - 1;
+    }
+
+    /**
+     * Stores the result of searching a position, unless its slot holds a deeper search from the current search.
+     * @param key the position key.
+     * @param depth the depth the position was searched to, from 0 to 126.
+     * @param utility the utility vector {RED, GREEN, BLUE} found.
+     * @param move the packed best move found, or 0 if there is none.
+     */
+    public void store(long key, int depth, int[] utility, int move) {
+        int slot = replace(key, depth);
+        if (slot < 0) {
+            return;
+        }
+        utilities[3 * slot] = utility[0];
+        utilities[3 * slot + 1] = utility[1];
+        utilities[3 * slot + 2] = utility[2];
+        moves[slot] = move;
+        bounds[slot] = EXACT;
+    }
+
+    /**
+     * Stores the result of a two-player search of a position, unless its slot holds a deeper search from the current search.
+     * @param key the position key.
+     * @param depth the depth the position was searched to, from 0 to 126.
+     * @param value the value found.
+     * @param bound EXACT, LOWER or UPPER, for whether the value is exact or a bound.
+     * @param move the packed best move found, or 0 if there is none.
+     */
+    public void store(long key, int depth, int value, int bound, int move) {
+        int slot = replace(key, depth);
+        if (slot < 0) {
+            return;
+        }
+        utilities[3 * slot] = value;
+        utilities[3 * slot + 1] = 0;
+        utilities[3 * slot + 2] = 0;
+        moves[slot] = move;
+        bounds[slot] = (byte) bound;
+    }
+
+    /**
+     * Claims the slot of a position for a new entry.
+     * @param key the position key.
+     * @param depth the depth the position was searched to.
+     * @return the slot, or -1 if it holds a deeper search of another position from the current search.
+     */
+    private int replace(long key, int depth) {
+        int slot = (int) key & mask;
+        if (depths[slot] != 0 && ages[slot] == age && keys[slot] != key && depths[slot] - 1 > depth) {
+            return -1;  //keep the deeper entry
+        }
+        keys[slot] = key;
+        depths[slot] = (byte) (depth + 1);
+        ages[slot] = age;
+        return slot;
+    }
+
+    /**
+     * Empties the table and resets the counters.
+     */
+    public void clear() {
+        java.util.Arrays.fill(depths, (byte) 0);
+        hits = 0;
+        misses = 0;
+        collisions = 0;
+    }
+
+    /** @return the number of lookups that found the position searched deep enough. */
+    public long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that found an empty slot, or the position searched too shallowly. */
+    public long getMisses() {
+        return misses;
+    }
+
+    /** @return the number of lookups that found a different position in the slot. */
+    public long getCollisions() {
+        return collisions;
+    }
+
+    /** @return the number of slots in the table. */
+    public int size() {
+        return keys.length;
+    }
+
+    /** @return a summary of the counters. */
+    public String toString() {
+        return "TranspositionTable[" + size() + " slots, hits=" + hits + ", misses=" + misses + ", collisions=" + collisions + "]";
+    }
+}
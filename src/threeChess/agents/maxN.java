@@ -2,26 +2,19 @@ package threeChess.agents;
 
 import threeChess.*;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.TimeUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 
 
-class Move{
-    public Position start;
-    public Position end;
-    
-    public Move(){}
-    public Move(Position s, Position e){
-        start =s;
-        end = e;
-    }
-}
 class mxRecord{
     public int[] utilityArr;
-    public Move move;
+    public int move;  //packed move, see MoveCode
     public mxRecord(){}
-    public mxRecord(int[] uR, Move mv){
+    public mxRecord(int[] uR, int mv){
         utilityArr = uR;
         move = mv;
     }
@@ -43,10 +36,102 @@ class mxRecord{
 public class maxN extends Agent {
 
     private static final String name = "maxN";
-    public ArrayList<Position> enemyAttackPositions = new ArrayList<Position>();  //this will store all positions attackable by the enemies. 
     int maxThink = 0;
+    private final Position[] starts = new Position[Board.MAX_MOVES];  //reusable buffers for the legal moves generated by the board
+    private final Position[] ends = new Position[Board.MAX_MOVES];
+    private IntMoveList[] levelMoves = new IntMoveList[0];  //reusable lists of packed moves for each level of the tree
+    private final TranspositionTable table;  //results of positions already searched, kept between moves
+    private static final int TABLE_BITS = 20;  //the table has 2^TABLE_BITS slots
+    private int searchDepth = 2;  //the level of the tree at which positions are scored rather than searched, in untimed games
+    private int depthLimit = 2;  //the level at which the current search scores positions
+    private static final int UNTIMED = 1;  //the time left, in milliseconds, that the game gives each player when it is untimed
+    private static final int MOVES_TO_PLAN = 50;  //the number of moves the time left is shared between
+    private static final long MAX_MOVE_MILLIS = 10000;  //the most time spent on one move
+    private static final int MAX_DEPTH = 30;  //the deepest level iterative deepening searches to
+    private long deadline = Long.MAX_VALUE;  //the System.nanoTime() at which the current search must stop
+    private boolean outOfTime = false;  //set when the deadline passes, abandoning the current iteration
+    private boolean orderMoves = false;  //whether to search the best move found by earlier iterations first
+    private int nodes = 0;  //the number of nodes visited in the current search
+    private int completedDepth = -1;  //the deepest level the last search completed
+    private Pruning pruning = Pruning.SPECULATIVE;  //how subtrees that cannot change the chosen move are cut off
+    private int pruned = EXACT;  //how the last call to maxn was cut off, one of the three values below
+    private static final int EXACT = 0;  //the utilities are exact
+    private static final int IGNORABLE = 1;  //the parent cannot choose the node, so its inexact utilities are ignored
+    private static final int SPECULATIVE = 2;  //either the parent or the grandparent cannot choose the node
+    private static final int PROMOTION_GAIN = PieceType.QUEEN.getValue() - PieceType.PAWN.getValue();
+    private Mode mode = Mode.MAXN;  //the search used to choose moves
+    private Colour rootPlayer = Colour.BLUE;  //the player the paranoid search is maximising for
+    private static final long[] PARANOID_KEYS = {0x5851F42D4C957F2DL, 0x2545F4914F6CDD1DL, 0xBF58476D1CE4E5B9L};  //keep paranoid values of each root player apart
+    private int threads = 1;  //the number of threads the max-n search splits the root moves between
+    private boolean splitReplies = false;  //whether the replies to each root move are split between the threads too
+    private static final HashMap<Integer, ForkJoinPool> POOLS = new HashMap<Integer, ForkJoinPool>();  //shared by all agents using the same number of threads
+    private static final int WORKER_TABLE_BITS = 16;  //the size of the tables of the searches run by the threads
+    private static final ThreadLocal<maxN> WORKERS = ThreadLocal.withInitial(() -> new maxN(0, WORKER_TABLE_BITS));  //the search state of each thread
+
+    /**
+     * The ways the max-n search can cut off subtrees.
+     * The scores of the players are never negative, and they add up to the value of all the pieces,
+     * which only changes when a pawn is promoted, so the sum of the utilities at the leaves is bounded.
+     * With shallow pruning, a node is cut off once its player is sure of so much that the rest is less than
+     * the parent's player already has.
+     * Speculative pruning also cuts off a node once the bounds of its player, its parent's and its grandparent's
+     * add up to more than there is, re-searching the node if the parent's choice then turns out to matter to the grandparent.
+     * Both only cut off subtrees that cannot be chosen, so they choose the same move as the search without pruning.
+     */
+    public enum Pruning {
+        NONE, SHALLOW, SPECULATIVE
+    }
+
+    /**
+     * The searches the agent can choose moves with.
+     * MAXN gives each player the move with the best utility for itself.
+     * PARANOID assumes the two opponents play together against the current player, minimising its score,
+     * which makes the tree a two-player tree searched with alpha-beta pruning, so it reaches deeper in the same time.
+     */
+    public enum Mode {
+        MAXN, PARANOID
+    }
 
     public maxN() {
+        table = new TranspositionTable(TABLE_BITS);
+    }
+
+    /**
+     * Creates an agent that searches to a given depth.
+     * @param searchDepth the level of the tree at which positions are scored, where the moves of the root are level 0.
+     */
+    public maxN(int searchDepth) {
+        this(searchDepth, TABLE_BITS);
+    }
+
+    /**
+     * Creates an agent that searches to a given depth, with a given size of transposition table.
+     * @param searchDepth the level of the tree at which positions are scored, where the moves of the root are level 0.
+     * @param tableBits the table has 2^tableBits slots.
+     */
+    private maxN(int searchDepth, int tableBits) {
+        this.searchDepth = searchDepth;
+        table = new TranspositionTable(tableBits);
+    }
+
+    /** @return the transposition table of the agent, for its hit, miss and collision counters. */
+    public TranspositionTable getTable() {
+        return table;
+    }
+
+    /**
+     * This method returns the key used for a position in the transposition table.
+     * The utilities include the value of captured pieces, which the board's hash key does not,
+     * so the scores are mixed in to tell apart positions with the same pieces but different captures.
+     * @param board the current game board.
+     * @return the key of the position.
+     */
+    private static long positionKey(Board board) {
+        long key = board.hashKey();
+        key ^= board.score(Colour.RED) * 0x9E3779B97F4A7C15L;
+        key ^= board.score(Colour.GREEN) * 0xC2B2AE3D27D4EB4FL;
+        key ^= board.score(Colour.BLUE) * 0x165667B19E3779F9L;
+        return board.gameOver() ? ~key : key;
     }
 
 
@@ -58,7 +143,10 @@ public class maxN extends Agent {
           return initialSetup(board);
         }
 
-        return startMaxn(board);
+        if(time <= UNTIMED){
+          return startMaxn(board);  //no clock, so search to the fixed depth
+        }
+        return startIterativeMaxn(board, Math.min(time / MOVES_TO_PLAN, MAX_MOVE_MILLIS));
 
         /*
          if(maxThink == 2){
@@ -79,7 +167,6 @@ public class maxN extends Agent {
      */
     public Position[] startNormalMove(Board board){
       Colour player = board.getTurn();
-      enemyAttackPositions = getEnemyAttackPositions(board, player);
       positionValue defensePV = checkDefense(board, player);
       Position[] attackPath = randomAttack(board);
   
@@ -159,16 +246,160 @@ public class maxN extends Agent {
      * @return The best move possible, based on max-n assesment. 
      */
     public Position[] startMaxn(Board board){
-      ArrayList<Move> actions = getActions(board, board.getTurn());   //Get all legal moves for current player
+      table.newSearch();
+      rootPlayer = board.getTurn();
+      IntMoveList actions = movesAt(0);
+      board.generateMoves(actions);   //Get all legal moves for current player
+      int slot = table.probe(searchKey(board), searchDepth + 1);
+      if(slot >= 0 && isLegal(actions, table.getMove(slot))){
+          return MoveCode.toPositions(table.getMove(slot));  //already searched this deep
+      }
+      depthLimit = searchDepth;
+      deadline = Long.MAX_VALUE;
+      outOfTime = false;
+      orderMoves = false;
+      nodes = 0;
+      int bestMove;
+      if(mode == Mode.PARANOID){
+          bestMove = searchParanoidRoot(board, actions, null);
+      }
+      else if(threads > 1){
+          bestMove = searchParallelRoot(board, actions, null);
+      }
+      else{
+          bestMove = searchRoot(board, actions, null);
+      }
+      completedDepth = searchDepth;
+      Position[] returnP = MoveCode.toPositions(bestMove);
+      return returnP;
+    }
+
+    /**
+     * This method runs max-n with iterative deepening, searching to level 0, 1, 2 and so on until a deadline.
+     * Each iteration searches the root moves in order of their utility in the previous iteration,
+     * and each node searches the best move stored in the transposition table first.
+     * An iteration that runs out of time is abandoned, and the best move of the last completed iteration is returned.
+     * Level 0 is always searched to completion on the calling thread, so a move is returned even when the budget is 0.
+     * @param board get the current game board.
+     * @param budget the number of milliseconds to search for.
+     * @return The best move found by the deepest completed search.
+     */
+    public Position[] startIterativeMaxn(Board board, long budget){
+      table.newSearch();
+      rootPlayer = board.getTurn();
+      long startTime = System.nanoTime();
+      deadline = startTime + budget * 1000000L;
+      outOfTime = false;
+      orderMoves = true;
+      nodes = 0;
+      IntMoveList actions = movesAt(0);
+      board.generateMoves(actions);
+      int[] rootScores = new int[actions.size()];
+      int bestMove = 0;
+      completedDepth = -1;
+      for(int depth = 0; depth <= MAX_DEPTH; depth++){
+          depthLimit = depth;
+          int move;
+          if(mode == Mode.PARANOID){
+              move = searchParanoidRoot(board, actions, rootScores);
+          }
+          else if(threads > 1 && depth > 0){
+              move = searchParallelRoot(board, actions, rootScores);
+          }
+          else{
+              move = searchRoot(board, actions, rootScores);  //level 0 on this thread, as the parallel tasks check the clock before they start
+          }
+          if(outOfTime){
+              break;  //level 0 is never cut short, as maxn checks the clock only when searching deeper
+          }
+          bestMove = move;
+          completedDepth = depth;
+          MoveOrdering.sortByScore(actions, rootScores);
+          if(System.nanoTime() - startTime > (deadline - startTime) / 2){
+              break;  //the next iteration takes longer than all the previous ones together, so would not finish
+          }
+      }
+      deadline = Long.MAX_VALUE;
+      return MoveCode.toPositions(bestMove);
+    }
+
+    /**
+     * Sets how the search cuts off subtrees.
+     * @param pruning the pruning mode.
+     */
+    public void setPruning(Pruning pruning) {
+        this.pruning = pruning;
+    }
+
+    /**
+     * Sets the search used to choose moves.
+     * The transposition table is emptied when the mode changes, as the two searches store different values.
+     * @param mode the search mode.
+     */
+    public void setMode(Mode mode) {
+        if(mode != this.mode){
+            table.clear();
+        }
+        this.mode = mode;
+    }
+
+    /**
+     * Sets the number of threads the max-n search uses, both to a fixed depth and in each iteration of iterative deepening.
+     * With more than one thread, the moves from the root are searched in parallel, each on its own copy of the board,
+     * and the results are merged in the order of the moves, so the move chosen is the same as with one thread.
+     * The paranoid search always uses one thread.
+     * @param threads the number of threads, 1 to search sequentially.
+     * @param splitReplies whether the replies to each root move are also searched in parallel, for positions with few moves.
+     */
+    public void setParallelism(int threads, boolean splitReplies) {
+        if(threads < 1){
+            throw new IllegalArgumentException("At least one thread is needed.");
+        }
+        this.threads = threads;
+        this.splitReplies = splitReplies;
+    }
+
+    /** @return the number of nodes visited by the last search. */
+    public int getNodeCount() {
+        return nodes;
+    }
+
+    /** @return the deepest level the last search completed, where the moves of the root are level 0. */
+    public int getCompletedDepth() {
+        return completedDepth;
+    }
+
+    /**
+     * This method searches every move from the root to the current depth limit,
+     * choosing the move with the largest utility for the current player.
+     * @param board get the current game board.
+     * @param actions the legal moves of the current player.
+     * @param rootScores if not null, filled with the current player's utility for each move, to order the next iteration.
+     * @return the best move, or 0 if there are no moves or the search ran out of time.
+     */
+    private int searchRoot(Board board, IntMoveList actions, int[] rootScores){
       int bestU = 0;
       ArrayList<mxRecord> allMX = new ArrayList<mxRecord>();
-      for(Move action : actions){
+      for(int a = 0; a < actions.size(); a++){
+          int action = actions.get(a);
           try{
-              Board copyBoard = (Board)board.clone();
-              copyBoard.move(action.start, action.end);
-              int[] utilityArr = maxn(copyBoard, 0);
+              board.makeMove(action);  //search in place, unmaking the move once evaluated
+              int[] utilityArr = maxn(board, 0, bestU, 0);
+              board.unmakeMove();
+              if(outOfTime){
+                  return 0;
+              }
+              if(pruned != EXACT){
+                  if(rootScores != null){
+                      rootScores[a] = -1;  //cut off, so worse than any move searched
+                  }
+                  continue;
+              }
               mxRecord thisRecord = new mxRecord(utilityArr, action);
               allMX.add(thisRecord);
+              if(rootScores != null){
+                  rootScores[a] = utilityArr[utilityIndex(board.getTurn())];
+              }
 
               if(board.getTurn() == Colour.RED){
                   if(utilityArr[0] >= bestU){
@@ -185,34 +416,338 @@ public class maxN extends Agent {
                       bestU = utilityArr[2];
                   }
               }
-          }catch(Exception e){System.out.println("Failed copying board and making move");}
+          }catch(Exception e){System.out.println("Failed making move");}
       }
       int minOtherU = Integer.MAX_VALUE;
-      Move bestMove = null;
+      int bestMove = 0;
+      int[] bestUtility = new int[3];
       for(mxRecord record : allMX){
           if(board.getTurn() == Colour.RED){
               if(record.utilityArr[0] == bestU && record.utilityArr[1] + record.utilityArr[2] <= minOtherU){
                   minOtherU = record.utilityArr[1] + record.utilityArr[2];
                   bestMove = record.move;
+                  bestUtility = record.utilityArr;
               }
           }
           else if(board.getTurn() == Colour.GREEN){
               if(record.utilityArr[1] == bestU && record.utilityArr[0] + record.utilityArr[2] <= minOtherU){
                   minOtherU = record.utilityArr[0] + record.utilityArr[2];
                   bestMove = record.move;
+                  bestUtility = record.utilityArr;
               }
           }
           else{
               if(record.utilityArr[2] == bestU && record.utilityArr[1] + record.utilityArr[0] <= minOtherU){
                   minOtherU = record.utilityArr[1] + record.utilityArr[0];
                   bestMove = record.move;
+                  bestUtility = record.utilityArr;
               }
           }
       }
-      Position[] returnP = new Position[] {bestMove.start, bestMove.end};
-      return returnP;
+      table.store(positionKey(board), depthLimit + 1, bestUtility, bestMove);
+      return bestMove;
+    }
+
+    /**
+     * This method searches every move from the root in parallel, using a ForkJoinPool with a task for each move.
+     * The root does not pass its bound to the tasks, so every move gets its exact utilities,
+     * and the best is chosen as searchRoot does, which only ever cuts off moves it would not choose.
+     * Every task stops at the deadline, and the search is then abandoned as searchRoot abandons it.
+     * @param board get the current game board.
+     * @param actions the legal moves of the current player.
+     * @param rootScores if not null, filled with the current player's utility for each move, to order the next iteration.
+     * @return the best move, or 0 if there are no moves or the search ran out of time.
+     */
+    private int searchParallelRoot(Board board, IntMoveList actions, int[] rootScores){
+      SubtreeTask[] tasks = new SubtreeTask[actions.size()];
+      for(int a = 0; a < actions.size(); a++){
+          tasks[a] = new SubtreeTask(copy(board), actions.get(a), 0, depthLimit, pruning, splitReplies, deadline);
+      }
+      poolOf(threads).invoke(new RecursiveTask<Void>(){
+          protected Void compute(){
+              invokeAll(tasks);
+              return null;
+          }
+      });
+      int player = utilityIndex(board.getTurn());
+      ArrayList<mxRecord> allMX = new ArrayList<mxRecord>();
+      for(int a = 0; a < tasks.length; a++){
+          int[] utilityArr = tasks[a].join();
+          nodes += tasks[a].nodes;
+          if(tasks[a].outOfTime){
+              outOfTime = true;
+              return 0;
+          }
+          allMX.add(new mxRecord(utilityArr, tasks[a].move));
+          if(rootScores != null){
+              rootScores[a] = utilityArr == null ? -1 : utilityArr[player];
+          }
+      }
+      mxRecord best = selectRecord(allMX, player);
+      int[] bestUtility = best == null ? new int[3] : best.utilityArr;
+      int bestMove = best == null ? 0 : best.move;
+      table.store(positionKey(board), depthLimit + 1, bestUtility, bestMove);
+      return bestMove;
+    }
+
+    /**
+     * A task for the parallel search, which searches the subtree below a move on its own copy of the board.
+     * A task for a root move may split the replies into a task each, choosing between their utilities as maxn does.
+     * Each thread searches with its own agent, so no search state is shared between threads.
+     */
+    private static class SubtreeTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+        private final Board board;  //a copy of the board before the move, for this task alone
+        private final int move;
+        private final int level;  //the level of the tree after the move
+        private final int depthLimit;
+        private final Pruning pruning;
+        private final boolean split;
+        private final long deadline;  //the System.nanoTime() at which the task must stop
+        private boolean outOfTime = false;  //set when the deadline passed before the subtree was searched, read after join
+        private int nodes = 0;  //the number of nodes the task and the tasks it split into visited, read after join
+
+        private SubtreeTask(Board board, int move, int level, int depthLimit, Pruning pruning, boolean split, long deadline) {
+            this.board = board;
+            this.move = move;
+            this.level = level;
+            this.depthLimit = depthLimit;
+            this.pruning = pruning;
+            this.split = split;
+            this.deadline = deadline;
+        }
+
+        /** @return the utilities of the position after the move, or null if the move could not be made or the task ran out of time. */
+        protected int[] compute() {
+            if(System.nanoTime() > deadline){
+                outOfTime = true;  //checked here too, as a subtree of fewer than 1024 nodes never checks the clock
+                return null;
+            }
+            try{
+                board.makeMove(move);
+            }
+            catch(ImpossiblePositionException e){
+                return null;
+            }
+            if(!split || level >= depthLimit || board.gameOver()){
+                maxN worker = WORKERS.get();
+                int[] utilityArr = worker.searchSubtree(board, level, depthLimit, pruning, deadline);
+                outOfTime = worker.outOfTime;
+                nodes = worker.nodes;
+                return outOfTime ? null : utilityArr;
+            }
+            IntMoveList replies = new IntMoveList();
+            board.generateMoves(replies);
+            SubtreeTask[] tasks = new SubtreeTask[replies.size()];
+            for(int a = 0; a < replies.size(); a++){  //copied here, as copying changes the board copied
+                tasks[a] = new SubtreeTask(copy(board), replies.get(a), level + 1, depthLimit, pruning, false, deadline);
+            }
+            invokeAll(tasks);
+            ArrayList<mxRecord> allMX = new ArrayList<mxRecord>();
+            for(SubtreeTask task : tasks){
+                int[] utilityArr = task.join();
+                nodes += task.nodes;
+                if(task.outOfTime){
+                    outOfTime = true;
+                    return null;
+                }
+                allMX.add(new mxRecord(utilityArr, task.move));
+            }
+            mxRecord best = selectRecord(allMX, utilityIndex(board.getTurn()));
+            return best == null ? new int[3] : best.utilityArr;
+        }
+    }
+
+    /**
+     * This method returns the pool of threads for a parallel search, creating it when first needed.
+     * @param threads the number of threads.
+     * @return the pool, which is shared by all agents using the same number of threads.
+     */
+    private static synchronized ForkJoinPool poolOf(int threads){
+        ForkJoinPool pool = POOLS.get(threads);
+        if(pool == null){
+            pool = new ForkJoinPool(threads);
+            POOLS.put(threads, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * This method searches the subtree below a node with no bounds from above, so the utilities returned are exact.
+     * The table is emptied first, so the result does not depend on what the thread searched before.
+     * @param board the board at the node.
+     * @param level the level of the node.
+     * @param depthLimit the level at which positions are scored.
+     * @param pruning the pruning mode.
+     * @param deadline the System.nanoTime() at which the search must stop.
+     * @return the utilities of the node, which are not meaningful if the search ran out of time.
+     */
+    private int[] searchSubtree(Board board, int level, int depthLimit, Pruning pruning, long deadline){
+        table.clear();
+        this.depthLimit = depthLimit;
+        this.pruning = pruning;
+        this.deadline = deadline;
+        outOfTime = false;
+        orderMoves = false;
+        nodes = 0;
+        return maxn(board, level, 0, 0);
+    }
+
+    /**
+     * This method copies a board.
+     * @param board the board.
+     * @return a copy that can be changed without changing the board.
+     */
+    private static Board copy(Board board){
+        try{
+            return (Board) board.clone();
+        }
+        catch(CloneNotSupportedException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * This method returns the key used for a position in the transposition table by the current search mode.
+     * Paranoid values depend on the player being maximised for, so it is mixed into their keys.
+     * @param board the current game board.
+     * @return the key of the position.
+     */
+    private long searchKey(Board board){
+        long key = positionKey(board);
+        return mode == Mode.PARANOID ? key ^ PARANOID_KEYS[rootPlayer.ordinal()] : key;
+    }
+
+    /**
+     * This method searches every move from the root with paranoid alpha-beta to the current depth limit,
+     * choosing the move that leaves the current player the largest score if both opponents play against it.
+     * Of moves with equal values, the first searched is chosen.
+     * @param board get the current game board.
+     * @param actions the legal moves of the current player.
+     * @param rootScores if not null, filled with the value of each move, or a bound on it below the best value, to order the next iteration.
+     * @return the best move, or 0 if there are no moves or the search ran out of time.
+     */
+    private int searchParanoidRoot(Board board, IntMoveList actions, int[] rootScores){
+      int alpha = Integer.MIN_VALUE;
+      int bestMove = 0;
+      for(int a = 0; a < actions.size(); a++){
+          int action = actions.get(a);
+          try{
+              board.makeMove(action);
+              int value = paranoid(board, 0, alpha, Integer.MAX_VALUE);
+              board.unmakeMove();
+              if(outOfTime){
+                  return 0;
+              }
+              if(rootScores != null){
+                  rootScores[a] = value;
+              }
+              if(value > alpha){
+                  alpha = value;
+                  bestMove = action;
+              }
+          }catch(Exception e){System.out.println("Failed making move");}
+      }
+      table.store(searchKey(board), depthLimit + 1, alpha, TranspositionTable.EXACT, bestMove);
+      return bestMove;
     }
 
+    /**
+     * This is the recursive method for the paranoid search.
+     * The root player maximises its score, and the two opponents, as one side, minimise it,
+     * so the search cuts off a node as soon as the side to move can do better than the other side allows.
+     * @param curBoard get the current game board.
+     * @param level the current level of the tree.
+     * @param alpha the score the root player is already sure of.
+     * @param beta the score the opponents can already hold the root player to.
+     * @return the root player's score, or a bound on it outside alpha and beta. 
+     */
+    private int paranoid(Board curBoard, int level, int alpha, int beta){
+      if((++nodes & 1023) == 0 && System.nanoTime() > deadline){
+          outOfTime = true;
+      }
+      if(outOfTime){
+          return 0;  //the result is abandoned, so there is no need to finish
+      }
+      if(level >= depthLimit || curBoard.gameOver()){
+          return curBoard.score(rootPlayer);
+      }
+      long key = searchKey(curBoard);
+      int slot = table.probe(key, depthLimit - level);
+      if(slot >= 0){
+          int value = table.getValue(slot);
+          int bound = table.getBound(slot);
+          if(bound == TranspositionTable.EXACT
+              || (bound == TranspositionTable.LOWER && value >= beta)
+              || (bound == TranspositionTable.UPPER && value <= alpha)){
+              return value;
+          }
+      }
+      IntMoveList actions = movesAt(level+1);
+      curBoard.generateMoves(actions);
+      MoveOrdering.orderCaptures(actions);
+      MoveOrdering.moveToFront(actions, table.getBestMove(key));
+      boolean maximising = curBoard.getTurn() == rootPlayer;
+      int startAlpha = alpha;
+      int startBeta = beta;
+      int best = maximising ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+      int bestMove = 0;
+      for(int a = 0; a < actions.size() && alpha < beta; a++){
+          int action = actions.get(a);
+          try{
+              curBoard.makeMove(action);
+              int value = paranoid(curBoard, level+1, alpha, beta);
+              curBoard.unmakeMove();
+              if(outOfTime){
+                  return 0;
+              }
+              if(maximising ? value > best : value < best){
+                  best = value;
+                  bestMove = action;
+                  if(maximising){
+                      alpha = Math.max(alpha, value);
+                  }
+                  else{
+                      beta = Math.min(beta, value);
+                  }
+              }
+          }
+          catch(Exception e){System.out.println("Illegal move! Recursion failed!");}
+      }
+      if(bestMove == 0){
+          return curBoard.score(rootPlayer);  //no legal moves
+      }
+      int bound = best <= startAlpha ? TranspositionTable.UPPER : best >= startBeta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+      table.store(key, depthLimit - level, best, bound, bestMove);
+      return best;
+    }
+
+    /**
+     * This method checks a move taken from the transposition table against the legal moves.
+     * @param actions the legal moves of the current player.
+     * @param move the packed move, or 0 if the entry holds none.
+     * @return whether the move is one of the legal moves.
+     */
+    private static boolean isLegal(IntMoveList actions, int move){
+        if(move == 0){
+            return false;
+        }
+        for(int i = 0; i < actions.size(); i++){
+            if(actions.get(i) == move){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * This method returns the index of a player's utility in the utility arrays {RED, GREEN, BLUE}.
+     * @param player the player.
+     * @return the index of the player's utility.
+     */
+    private static int utilityIndex(Colour player){
+        return player == Colour.RED ? 0 : player == Colour.GREEN ? 1 : 2;
+    }
 
     /**
      * This is the recursive method for running max-n algorithm.
@@ -223,8 +758,27 @@ public class maxN extends Agent {
      * @return An array of utilities {RED, GREEN, BLUE} which is the most beneficial to the current player
      */
      public int[] maxn(Board curBoard, int level){
+      return maxn(curBoard, level, 0, 0);
+     }
 
-      if(level >= 2 || curBoard.gameOver()){
+    /**
+     * This is the recursive method for running max-n algorithm, with the bounds used for pruning.
+     * When a subtree is cut off, the utilities returned are not exact, and the pruned field says why.
+     * @param curBoard get the current game board. 
+     * @param level the current level of the tree.
+     * @param parentBest the utility the player of the parent node is sure of from the children it has already searched.
+     * @param grandBest the utility the player of the grandparent node is sure of, or 0 if there is none.
+     * @return An array of utilities {RED, GREEN, BLUE} which is the most beneficial to the current player
+     */
+     private int[] maxn(Board curBoard, int level, int parentBest, int grandBest){
+      if((++nodes & 1023) == 0 && System.nanoTime() > deadline){
+          outOfTime = true;
+      }
+      if(outOfTime){
+          return null;  //the result is abandoned, so there is no need to finish
+      }
+      pruned = EXACT;
+      if(level >= depthLimit || curBoard.gameOver()){
           //return the list of utility for all players
           int utilityR = curBoard.score(Colour.RED); 
           int utilityG = curBoard.score(Colour.GREEN); 
@@ -232,60 +786,161 @@ public class maxN extends Agent {
           int[] mxReturn = new int[] {utilityR, utilityG, utilityB};
           return mxReturn;
       }
-      ArrayList<Move> actions = getActions(curBoard, curBoard.getTurn());
+      long key = positionKey(curBoard);
+      int slot = table.probe(key, depthLimit - level);
+      if(slot >= 0){
+          return table.getUtilities(slot);  //searched before, by another order of moves
+      }
+      IntMoveList actions = movesAt(level+1);
+      curBoard.generateMoves(actions);
+      if(orderMoves){
+          MoveOrdering.moveToFront(actions, table.getBestMove(key));  //the best move found by an earlier iteration
+      }
+      int player = utilityIndex(curBoard.getTurn());
+      int parentPlayer = utilityIndex(Colour.values()[(curBoard.getTurn().ordinal() + 2) % 3]);
+      //the most the utilities of any leaf below can add up to, as only promotions add value
+      int maxSum = curBoard.score(Colour.RED) + curBoard.score(Colour.GREEN) + curBoard.score(Colour.BLUE)
+          + (depthLimit - level) * PROMOTION_GAIN;
 
       int bestU = 0;
       ArrayList<mxRecord> allMX = new ArrayList<mxRecord>();
-      for(Move action : actions){
+      boolean speculated = false;  //whether a move was cut off using the grandparent's bound, and may need searching again
+      for(int a = 0; a < actions.size(); a++){
+          int action = actions.get(a);
           try{
-              Board newBoard = (Board)curBoard.clone();
-              newBoard.move(action.start, action.end);
-              int[] utilityArr = maxn(newBoard, level+1);
+              curBoard.makeMove(action);
+              int[] utilityArr = maxn(curBoard, level+1, bestU, parentBest);
+              int result = pruned;
+              curBoard.unmakeMove();
+              if(outOfTime){
+                  return null;
+              }
+              if(result == SPECULATIVE){
+                  allMX.add(new mxRecord(null, action));  //held in its place, as ties go to the last move searched
+                  speculated = true;
+                  continue;
+              }
+              if(result == IGNORABLE){
+                  continue;
+              }
               mxRecord thisRecord = new mxRecord(utilityArr, action);
               allMX.add(thisRecord);
-              if(curBoard.getTurn() == Colour.RED){
-                  if(utilityArr[0] >= bestU){
-                      bestU = utilityArr[0];
-                  }
+              if(utilityArr[player] >= bestU){
+                  bestU = utilityArr[player];
               }
-              else if(curBoard.getTurn() == Colour.GREEN){
-                  if(utilityArr[1] >= bestU){
-                      bestU = utilityArr[1];
-                  }
-              }
-              else{
-                  if(utilityArr[2] >= bestU){
-                      bestU = utilityArr[2];
-                  }
+              if(cutOff(bestU, parentBest, grandBest, maxSum)){
+                  return utilityArr;
               }
           }
-          catch(Exception e){System.out.println("Illegal move or failed copying board! Recursion failed!");}
+          catch(Exception e){System.out.println("Illegal move! Recursion failed!");}
       }
-      int minOtherU = Integer.MAX_VALUE;
-      int[] bestUtility = new int[3];
-      for(mxRecord record : allMX){
-          if(curBoard.getTurn() == Colour.RED){
-              if(record.utilityArr[0] == bestU && record.utilityArr[1] + record.utilityArr[2] <= minOtherU){
-                  minOtherU = record.utilityArr[1] + record.utilityArr[2];
-                  bestUtility = record.utilityArr;
-              }
+      mxRecord best = selectRecord(allMX, player, bestU);
+      if(speculated){
+          int[] bestUtility = best == null ? new int[3] : best.utilityArr;
+          if(bestUtility[parentPlayer] < parentBest){
+              //the moves cut off could only matter if this node were good for the parent's player, which it is not
+              pruned = IGNORABLE;
+              return bestUtility;
           }
-          else if(curBoard.getTurn() == Colour.GREEN){
-              if(record.utilityArr[1] == bestU && record.utilityArr[0] + record.utilityArr[2] <= minOtherU){
-                  minOtherU = record.utilityArr[0] + record.utilityArr[2];
-                  bestUtility = record.utilityArr;
+          for(mxRecord record : allMX){  //search the moves again, with only this node's bound
+              if(record.utilityArr != null){
+                  continue;
               }
-          }
-          else{
-              if(record.utilityArr[2] == bestU && record.utilityArr[1] + record.utilityArr[0] <= minOtherU){
-                  minOtherU = record.utilityArr[1] + record.utilityArr[0];
-                  bestUtility = record.utilityArr;
+              try{
+                  curBoard.makeMove(record.move);
+                  int[] utilityArr = maxn(curBoard, level+1, bestU, 0);
+                  int result = pruned;
+                  curBoard.unmakeMove();
+                  if(outOfTime){
+                      return null;
+                  }
+                  if(result != EXACT){
+                      continue;
+                  }
+                  record.utilityArr = utilityArr;
+                  if(utilityArr[player] >= bestU){
+                      bestU = utilityArr[player];
+                  }
+                  if(cutOff(bestU, parentBest, grandBest, maxSum)){
+                      return utilityArr;
+                  }
               }
+              catch(Exception e){System.out.println("Illegal move! Recursion failed!");}
           }
-      } 
+          best = selectRecord(allMX, player, bestU);
+      }
+      pruned = EXACT;
+      int[] bestUtility = best == null ? new int[3] : best.utilityArr;
+      int bestMove = best == null ? 0 : best.move;
+      table.store(key, depthLimit - level, bestUtility, bestMove);
       return bestUtility;
   }
 
+    /**
+     * This method checks whether a node can be cut off, setting the pruned field to say why.
+     * Every leaf below has utilities adding up to at most maxSum, so once the node's player is sure of bestU
+     * the other two players share at most maxSum - bestU between them.
+     * @param bestU the utility the node's player is sure of.
+     * @param parentBest the utility the parent's player is sure of.
+     * @param grandBest the utility the grandparent's player is sure of.
+     * @param maxSum the most the utilities can add up to.
+     * @return true if the rest of the node's children need not be searched.
+     */
+    private boolean cutOff(int bestU, int parentBest, int grandBest, int maxSum){
+        if(pruning == Pruning.NONE){
+            return false;
+        }
+        if(bestU + parentBest > maxSum){
+            pruned = IGNORABLE;  //the parent's player has more than this node can leave them
+            return true;
+        }
+        if(pruning == Pruning.SPECULATIVE && bestU + parentBest + grandBest > maxSum){
+            pruned = SPECULATIVE;  //this node leaves too little for the parent's and grandparent's players both
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * This method chooses the record a player prefers: the one with the largest utility for the player,
+     * breaking ties by the smallest total utility for the others, and then by the last searched.
+     * @param allMX the records of the children, where those not searched have no utilities.
+     * @param player the index of the player's utility.
+     * @return the chosen record, or null if there are none.
+     */
+    private static mxRecord selectRecord(ArrayList<mxRecord> allMX, int player){
+        int bestU = 0;
+        for(mxRecord record : allMX){
+            if(record.utilityArr != null && record.utilityArr[player] > bestU){
+                bestU = record.utilityArr[player];
+            }
+        }
+        return selectRecord(allMX, player, bestU);
+    }
+
+    /**
+     * This method chooses the record a player prefers, given the largest utility for the player among the records.
+     * @param allMX the records of the children, where those not searched have no utilities.
+     * @param player the index of the player's utility.
+     * @param bestU the largest utility of the player among the records.
+     * @return the chosen record, or null if there are none.
+     */
+    private static mxRecord selectRecord(ArrayList<mxRecord> allMX, int player, int bestU){
+        int minOtherU = Integer.MAX_VALUE;
+        mxRecord best = null;
+        for(mxRecord record : allMX){
+            if(record.utilityArr == null){
+                continue;
+            }
+            int others = record.utilityArr[0] + record.utilityArr[1] + record.utilityArr[2] - record.utilityArr[player];
+            if(record.utilityArr[player] == bestU && others <= minOtherU){
+                minOtherU = others;
+                best = record;
+            }
+        }
+        return best;
+    }
+
     /**
      * This method finds the best attack position.
      * @param board the current game board
@@ -293,42 +948,27 @@ public class maxN extends Agent {
      */
 
     public Position[] randomAttack(Board board) {
-        Colour playerCol = board.getTurn();
-        Position[] allPositions = board.getPositions(playerCol).toArray(new Position[0]);
         Position start = null;
         Position end = null;
         Position legalStart = null;
         Position legalEnd = null;
     
-        if (checkAttack(board)[0] != null) {
-          start = checkAttack(board)[0];
-          end = checkAttack(board)[1];
+        Position[] attack = checkAttack(board);
+        if (attack[0] != null) {
+          start = attack[0];
+          end = attack[1];
           return new Position[] { start, end };
         }
         // if there is no attack option available
-        for (Position position : allPositions) {
-          Piece thisPiece = board.getPiece(position);
-          start = position;
-          PieceType pieceType = thisPiece.getType();
-          int stepRep = pieceType.getStepReps();
-          Direction[][] legitSteps = pieceType.getSteps();
-          for (Direction[] step : legitSteps) {
-            end = start;
-            for (int i = 0; i < stepRep; i++) {
-              try {
-                end = board.step(thisPiece, step, end);
-                if (board.isLegalMove(start, end)) {
-                  legalStart = start;
-                  legalEnd = end;
-                }
-                if (board.isLegalMove(start, end) && !enemyAttackPositions.contains(end)) { // find a position where the
-                                                                                            // enemy cannot attack
-                  System.out.println("Moving: [" + start.toString() + ", " + end.toString() + " ]");
-                  return new Position[] { start, end };
-                }
-              } catch (Exception e) {
-              }
-            }
+        int count = board.generateMoves(starts, ends);
+        for (int i = 0; i < count; i++) {
+          start = starts[i];
+          end = ends[i];
+          legalStart = start;
+          legalEnd = end;
+          if (!isEnemyAttacked(board, board.getTurn(), end)) { // find a position where the enemy cannot attack
+            System.out.println("Moving: [" + start.toString() + ", " + end.toString() + " ]");
+            return new Position[] { start, end };
           }
         }
         return new Position[] { legalStart, legalEnd };
@@ -342,36 +982,22 @@ public class maxN extends Agent {
       public Position[] checkAttack(Board board) {
         Colour playerCol = board.getTurn();
         int curScore = board.score(playerCol);
-        Position[] allPositions = board.getPositions(playerCol).toArray(new Position[0]);
         Position start = null;
         Position end = null;
         int highestScore = 0;
 
-        for (Position position : allPositions) {
-          Piece thisPiece = board.getPiece(position);
-          PieceType pieceType = thisPiece.getType();
-          int stepRep = pieceType.getStepReps();
-          Direction[][] legitSteps = pieceType.getSteps();
-          for (Direction[] step : legitSteps) {
-            Position s = position;
-            Position e = null;
-            for (int i = 0; i < stepRep; i++) {
-              try {
-                e = board.step(thisPiece, step, s);
-                if (board.isLegalMove(s, e)) {
-                  Board copyBoard = (Board) board.clone();
-                  copyBoard.move(s, e);
-                  if (copyBoard.score(playerCol) > curScore && copyBoard.score(playerCol) > highestScore) {
-                    start = s;
-                    end = e;
-                    highestScore = copyBoard.score(playerCol);
-                    break;
-                  }
-                }
-              } catch (Exception exc) {
-                break;
-              }
+        int count = board.generateMoves(starts, ends);
+        for (int i = 0; i < count; i++) {
+          try {
+            board.makeMove(starts[i], ends[i]);
+            int score = board.score(playerCol);
+            board.unmakeMove();
+            if (score > curScore && score > highestScore) {
+              start = starts[i];
+              end = ends[i];
+              highestScore = score;
             }
+          } catch (Exception exc) {
           }
         }
         if (start == null) {
@@ -390,14 +1016,14 @@ public class maxN extends Agent {
       public positionValue checkDefense(Board board, Colour player) {
         Position mostVulnerable = null;
         int vulnerability = 0;
-        for (Position enemyAttack : enemyAttackPositions) {
-          try {
-            if (board.getPiece(enemyAttack).getColour() == player
-                && board.getPiece(enemyAttack).getValue() > vulnerability) {
-              vulnerability = board.getPiece(enemyAttack).getValue();
-              mostVulnerable = enemyAttack;
-            }
-          } catch (Exception e) {
+        Position[] positions = new Position[Board.MAX_PIECES];
+        int count = board.getPositions(player, positions);
+        for (int i = 0; i < count; i++) {
+          Position enemyAttack = positions[i];
+          if (isEnemyAttacked(board, player, enemyAttack)
+              && board.getPiece(enemyAttack).getValue() > vulnerability) {
+            vulnerability = board.getPiece(enemyAttack).getValue();
+            mostVulnerable = enemyAttack;
           }
         }
         positionValue pv = new positionValue(mostVulnerable, vulnerability);
@@ -415,24 +1041,12 @@ public class maxN extends Agent {
      * @return the defensive move which leads to least loss.
      */
       public Position[] findSafePosition(Board board, Colour player, Position position) {
-        Direction[][] steps = board.getPiece(position).getType().getSteps();
-        int stepReps = board.getPiece(position).getType().getStepReps();
-        Piece p = board.getPiece(position);
         Position start = position;
         Position safeEnd = null;
-        for (Direction[] step : steps) {
-          Position end = start;
-          for (int i = 0; i < stepReps; i++) {
-            try {
-              end = board.step(p, step, end);
-              if (board.isLegalMove(start, end)) {
-                if (!enemyAttackPositions.contains(end)) {
-                  safeEnd = end;
-                }
-              }
-              break;
-            } catch (Exception e) {
-            }
+        int count = board.generateMoves(starts, ends);
+        for (int i = 0; i < count; i++) {
+          if (starts[i] == start && !isEnemyAttacked(board, player, ends[i])) {
+            safeEnd = ends[i];
           }
         }
         if(safeEnd == null) return null;
@@ -465,92 +1079,48 @@ public class maxN extends Agent {
      */
       public ArrayList<Position> getEnemyAttackPositions(Board board, Colour player) {
         ArrayList<Position> enemyAttPositions = new ArrayList<Position>();
-        Colour[] enemies = getEnemies(player);
-        ArrayList<Position[]> enemyPositions = new ArrayList<Position[]>();
-        enemyPositions.add(board.getPositions(enemies[0]).toArray(new Position[0]));
-        enemyPositions.add(board.getPositions(enemies[1]).toArray(new Position[0]));
-        for (Position[] enemyPosition : enemyPositions) {
-          for (Position position : enemyPosition) {
-            Position start = position;
-            Piece p = board.getPiece(position);
-            int stepRep = p.getType().getStepReps();
-            Direction[][] steps = p.getType().getSteps();
-            if (p.getType() != PieceType.PAWN) { // if not a PAWN, it attacks everything on its path
-              for (Direction[] step : steps) {
-                Position end = start;
-                for (int i = 0; i < stepRep; i++) {
-                  try {
-                    end = board.step(p, step, end);
-                    if (board.getPiece(end) == null) {
-                      if (!enemyAttPositions.contains(end)) {
-                        enemyAttPositions.add(end);
-                      }
-                    } else if (board.getPiece(end) != null) {
-                      enemyAttPositions.add(end);
-                      break;
-                    }
-    
-                  } catch (Exception e) {
-                  }
-                }
-              }
-            } else {
-              for (Direction[] step : steps) { // if it is a PAWN, there's special consideration
-                Position end = start;
-                Direction[] pawnForward = new Direction[] { Direction.FORWARD };
-                Direction[] pawnForward2 = new Direction[] { Direction.FORWARD, Direction.FORWARD };
-                if (!Arrays.equals(step, pawnForward) && !Arrays.equals(step, pawnForward2)) {
-                  try {
-                    end = board.step(p, step, end);
-                    if (!enemyAttPositions.contains(end)) {
-                      enemyAttPositions.add(end);
-                    }
-                  } catch (Exception e) {
-                  }
-                }
-              }
-            }
-    
+        for (Position position : Position.values()) {
+          if (isEnemyAttacked(board, player, position)) {
+            enemyAttPositions.add(position);
           }
         }
         return enemyAttPositions;
       }
-    
 
-      /**
-     * This method get all legal moves of the current player.
+    /**
+     * This method checks whether an enemy piece could take a piece at a position,
+     * using the board's attack masks.
      * @param board the current game board.
-     * @param player the player we need to get attackable positions for. 
-     * @return an Arraylist of all legal moves
-     */
-    public ArrayList<Move> getActions(Board board, Colour player){
-            //get all actions and put into the ArrayList
-            ArrayList<Move> allMoves = new ArrayList<Move>();
-            Position[] allPositions = board.getPositions(player).toArray(new Position[0]);
-            for(Position position : allPositions){
-                Position start = position;
-                int stepReps = board.getPiece(position).getType().getStepReps();
-                Direction[][] allSteps = board.getPiece(position).getType().getSteps();
-                ArrayList<Position> existEnds = new ArrayList<Position>();
-                for(Direction[] step : allSteps){
-                    Position end = start;
-                    for(int i = 0; i < stepReps; i++){
-                        try{
-                            end = board.step(board.getPiece(position), step, end);
-                            if(board.isLegalMove(start, end)){
-                                if(!existEnds.contains(end)){
-                                    allMoves.add(new Move(start, end));
-                                    existEnds.add(end);
-                                }  
-                            }
-                        }catch(Exception e){}   
-                    }
-                }
-            }
-            return allMoves;
+     * @param player the player whose enemies may attack.
+     * @param position the position that may be attacked.
+     * @return true if a piece of either enemy attacks the position.
+     */
+      public boolean isEnemyAttacked(Board board, Colour player, Position position) {
+        for (Colour enemy : Colour.values()) {
+          if (enemy != player && board.isAttacked(position, enemy)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    
+
+    /**
+     * This method returns the reusable list of packed moves for a level of the tree,
+     * where level 0 is the root.
+     * @param level the level of the tree.
+     * @return the list for that level.
+     */
+    private IntMoveList movesAt(int level){
+        if(level >= levelMoves.length){
+            levelMoves = Arrays.copyOf(levelMoves, level+1);
+        }
+        if(levelMoves[level] == null){
+            levelMoves[level] = new IntMoveList();
+        }
+        return levelMoves[level];
     }
 
- 
     /**
      * @return the Agent's name, for annotating game description.
      **/
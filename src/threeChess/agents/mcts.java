@@ -2,286 +2,482 @@ package threeChess.agents;
 
 import threeChess.*;
 
-import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * A node class that will allow us to implement the 4 phases of a monte carlo
- * tree search
+ * The nodes of a monte carlo search tree, that will allow us to implement the 4 phases of a monte carlo tree search.
+ * Rather than an object for each node, the nodes are indexes into arrays that are allocated once and reused
+ * for every search, so running an iteration allocates nothing. Node 0 is the root.
+ * The children of a node are a block of consecutive nodes, one for each of its moves, allocated the first time
+ * the node is expanded. The children before the node's expanded count have been tried, and the rest hold
+ * the unexplored moves, which are swapped into place as they are tried.
+ * Once the arrays are full, nodes are no longer expanded, and iterations simulate from the leaf they reach.
+ * The statistics are atomic arrays, so a tree can be searched by several threads at once.
+ * A block of children is claimed with a compare and set, and only picking the next move to try holds a lock,
+ * one of a small set shared between the nodes; the move is made and its child filled in outside the lock.
  */
-class MctsNode {
-    private final Colour player;
-    private final MctsNode parent;
-    private int numSimulations = 0;
-    private final Reward reward;
-    private final LinkedList<MctsNode> children = new LinkedList<>();
-    private final LinkedList<Position[]> unexploredMoves;
-    private final Position[] moveUsedToGetToNode; // This is where we will store the moves used to get to the current
-                                                  // child node
-
-    /**
-     * This will create a child node that links to a parent, has information about
-     * the move used to get to the current node the state of the board after
-     * performing said move
-     * 
-     * @param parent parent node
-     * @param move   move used to get to child node
-     * @param board  child nodes board state
-     */
-    public MctsNode(MctsNode parent, Position[] move, Board board) {
-        player = board.getTurn();
-        this.parent = parent;
-        moveUsedToGetToNode = move;
-        unexploredMoves = validMoves(board); // returns all the available moves currently on the board
-        int blue = board.score(Colour.BLUE);
-        int green = board.score(Colour.GREEN);
-        int red = board.score(Colour.RED);
-        reward = new Reward(blue, green, red);
-    }
-
-    /**
-     * This method will loop through all the current child nodes in the decision
-     * tree and calculate all of their reward values in order to find the most
-     * promising child node to explore next. The MCTS algorithm is domain
-     * independent so the formula for calculating reward that we will use is as
-     * follows: Vi + 1 * squareroot(2*(log N) / ni) Where; Vi is the average
-     * reward/value of root nodes child nodes N: is the number of times the parent
-     * node has been visited ni: is the number of times the child node i has been
-     * visited
-     * 
-     * @return The most promising child node in the decision tree
+class MctsTree {
+    static final int NO_MOVE = -1;
+    static final int NONE = -1; // the parent of the root, and the node found when there is none
+    static final int ROOT = 0;
+    // The reward of a lost game, added to the nodes a thread is descending through so other threads try other branches
+    static final int VIRTUAL_LOSS = -10000;
+    private static final int UNEXPANDED = -1; // the child count of a node whose children are not yet allocated
+    private static final int EXPANDING = -2; // the child count of a node whose children a thread is allocating
+    private static final int LOCKS = 64; // the number of locks the nodes share, a power of two
+
+    private final AtomicIntegerArray visits;
+    private final AtomicLongArray rewards; // the reward sum of each player, three to a node by Colour ordinal
+    private final AtomicIntegerArray expanded; // the number of children tried, set once they are filled in
+    private final int[] parents;
+    private final int[] firstChildren;
+    private final AtomicIntegerArray childCounts; // the number of moves from each node, set once its children are allocated
+    private final int[] moves; // the packed move used to get to each node, see MoveCode
+    private final long[] keys; // the hash key of each node's board, to check a reused subtree is the position searched
+    private final byte[] players; // the Colour ordinal of the player whose turn it is at each node
+    private final Object[] locks = new Object[LOCKS]; // held while picking the move to try from a node
+    private final AtomicInteger size = new AtomicInteger(); // the number of nodes allocated
+
+    /**
+     * This will create an empty tree
+     * @param capacity the number of nodes the tree can hold
      */
-    public MctsNode select() {
-        MctsNode selectedNode = this;
-        double max = Integer.MIN_VALUE;
+    public MctsTree(int capacity) {
+        visits = new AtomicIntegerArray(capacity);
+        rewards = new AtomicLongArray(3 * capacity);
+        expanded = new AtomicIntegerArray(capacity);
+        parents = new int[capacity];
+        firstChildren = new int[capacity];
+        childCounts = new AtomicIntegerArray(capacity);
+        moves = new int[capacity];
+        keys = new long[capacity];
+        players = new byte[capacity];
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+    }
 
-        for (MctsNode child : getChildNodes()) { // for every child node, we calculate their UCT values and select the
-                                                 // best one
-            double uctValue = getUctValue(child);
+    /**
+     * This method empties the tree, leaving only a root for a board
+     * @param board the board at the root
+     */
+    public void reset(Board board) {
+        size.set(1);
+        parents[ROOT] = NONE;
+        moves[ROOT] = NO_MOVE;
+        players[ROOT] = (byte) board.getTurn().ordinal();
+        clear(ROOT);
+        fill(ROOT, board);
+    }
+
+    /**
+     * This method empties the statistics of a node, which has no visits or children
+     * @param node the node
+     */
+    private void clear(int node) {
+        visits.set(node, 0);
+        for (int i = 0; i < 3; i++) {
+            rewards.set(3 * node + i, 0);
+        }
+        childCounts.set(node, UNEXPANDED);
+        expanded.set(node, 0);
+    }
+
+    /**
+     * This method adds the scores of the board reached to the reward sums of a node, and records its hash key.
+     * The scores are added rather than set, so rewards other threads back up through the node meanwhile are kept
+     * @param node the node
+     * @param board the board at the node
+     */
+    private void fill(int node, Board board) {
+        keys[node] = board.hashKey();
+        for (Colour colour : Colour.values()) {
+            rewards.addAndGet(3 * node + colour.ordinal(), board.score(colour));
+        }
+    }
+
+    /**
+     * This method will loop through the tried children of a node and calculate their UCT values in order
+     * to find the most promising child node to explore next. The formula is
+     * Vi + squareroot(2*(log N) / ni) Where; Vi is the average reward of child i for the player to move at the node,
+     * N is the number of times the node has been visited and ni is the number of times child i has been visited
+     *
+     * @param node the node
+     * @return The most promising child node, or NONE if no child has been tried
+     */
+    public int select(int node) {
+        int tried = expanded.get(node); // read first, so the children it counts are filled in
+        int first = firstChildren[node];
+        int player = players[node];
+        double logVisits = Math.log(visits.get(node));
+        int selectedNode = NONE;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int child = first; child < first + tried; child++) {
+            double uctValue;
+            int childVisits = visits.get(child);
+            if (childVisits == 0) {
+                uctValue = 1;
+            } else {
+                uctValue = rewards.get(3 * child + player) / (childVisits * 1.0)
+                        + Math.sqrt(2 * logVisits / childVisits);
+            }
+            uctValue += ThreadLocalRandom.current().nextDouble() / 10000000;
             if (uctValue > max) {
                 max = uctValue;
                 selectedNode = child;
             }
         }
-
-        return selectedNode; // returns the child node with the best uct value
+        return selectedNode;
     }
 
     /**
-     * This is a method that will calculate and return the UCT Value for a child
-     * node
-     * 
-     * @param child node
-     * @return The UCT value of the child node
+     * This method will allow us to determine whether a node can be expanded or not
+     * @param node the node
+     * @return whether the node has not yet been expanded, or has moves not yet tried
      */
-    private double getUctValue(MctsNode child) {
-        double uctValue;
-
-        if (child.getNumberOfSimulations() == 0) {
-            uctValue = 1;
-        } else {
-            uctValue = (child.getRewardForPlayer(getPlayer())) / (child.getNumberOfSimulations() * 1.0)
-                    + ((Math.sqrt(2 * (Math.log(getNumberOfSimulations()) / child.getNumberOfSimulations()))));
-        }
-
-        Random r = new Random();
-        uctValue += (r.nextDouble() / 10000000);
-        return uctValue;
+    public boolean canExpand(int node) {
+        int count = childCounts.get(node);
+        return count < 0 || expanded.get(node) < count;
     }
 
     /**
-     * This method takes as an input a Board and then examines all the available
-     * positions currently on the board. After examining the available moves on the
-     * board this method will play a random valid move and create a new child node
-     * 
-     * @param game
-     * @return
+     * This method plays a random move not yet tried from a node on the board, and fills in the child it reaches.
+     * The children of the node are allocated the first time it is expanded, by the thread that claims the node.
+     * A child is counted as tried as soon as its move is picked, before it is filled in, which is safe as a child
+     * with no visits is chosen without reading its rewards, and filling it in only adds to them.
+     *
+     * @param node the node, which is the position of the board
+     * @param game the board, which is left at the position of the node returned
+     * @param generated a list to generate the moves of the node into
+     * @return the child, or the node itself if it has no moves left to try, another thread is allocating
+     *         its children, or the tree is full
      * @throws ImpossiblePositionException
      */
-    public MctsNode expand(Board game) throws ImpossiblePositionException {
-        if (!nodeCanBeExpanded()) {
-            return this;
+    public int expand(int node, Board game, IntMoveList generated) throws ImpossiblePositionException {
+        int count = childCounts.get(node);
+        if (count < 0) {
+            if (count == EXPANDING || !childCounts.compareAndSet(node, UNEXPANDED, EXPANDING)) {
+                return node;
+            }
+            count = game.gameOver() ? 0 : game.generateMoves(generated);
+            int first = allocate(count);
+            if (first == NONE) {
+                childCounts.set(node, UNEXPANDED); // no room for the children
+                return node;
+            }
+            byte player = (byte) ((players[node] + 1) % 3); // the turn passes to the next colour
+            for (int i = 0; i < count; i++) {
+                parents[first + i] = node;
+                moves[first + i] = generated.get(i);
+                players[first + i] = player;
+                clear(first + i);
+            }
+            firstChildren[node] = first;
+            childCounts.set(node, count);
         }
-        Random random = new Random();
-        int moveToPlay = random.nextInt(unexploredMoves.size());
-
-        Position[] move = unexploredMoves.remove(moveToPlay);
-        game.move(move[0], move[1]);
-        MctsNode child = new MctsNode(this, move, game);
-        children.add(child);
+        int child;
+        synchronized (locks[node & (LOCKS - 1)]) {
+            int tried = expanded.get(node);
+            if (tried == count) {
+                return node;
+            }
+            child = firstChildren[node] + tried;
+            int pick = child + ThreadLocalRandom.current().nextInt(count - tried);
+            int move = moves[pick];
+            moves[pick] = moves[child];
+            moves[child] = move;
+            expanded.set(node, tried + 1);
+        }
+        game.makeMove(moves[child]);
+        fill(child, game);
         return child;
     }
 
-    public void backPropagate(Reward reward) {
-        this.reward.addReward(reward);
-        this.numSimulations++;
-        if (parent != null) {
-            parent.backPropagate(reward);
+    /**
+     * This method claims a block of nodes
+     * @param count the number of nodes
+     * @return the first node of the block, or NONE if the tree has no room for it
+     */
+    private int allocate(int count) {
+        while (true) {
+            int first = size.get();
+            if (first + count > parents.length) {
+                return NONE;
+            }
+            if (size.compareAndSet(first, first + count)) {
+                return first;
+            }
         }
     }
 
     /**
-     * Given a board position, returns a 2D array of all the valid moves that can be
-     * performed from the current position by the player whose turn it is to move.
-     * 
-     * @param board the current state of the game.
-     * @return a 2D array, where the second dimension is 2 elements long, indicating
-     *         all the valid moves for the current player.
-     */
-    public Position[][] getAvailableMoves(Board board) {
-        Position[] pieces = board.getPositions(board.getTurn()).toArray(new Position[0]);
-        Position[] spaces = Position.values();
-        ArrayList<Position[]> validmoves = new ArrayList<>();
-        for (Position piece : pieces) {
-            for (Position space : spaces) {
-                Position[] currentmove = new Position[] { piece, space };
-                if (board.isLegalMove(piece, space) && !validmoves.contains(currentmove))
-                    validmoves.add(currentmove);
-            }
+     * This method adds the reward of a simulated game to a node and the nodes above it, and counts a visit to each
+     *
+     * @param node the node the game was simulated from
+     * @param reward the reward of each player, by Colour ordinal
+     */
+    public void backPropagate(int node, int[] reward) {
+        for (; node != NONE; node = parents[node]) {
+            addRewards(node, reward, 0);
+            visits.incrementAndGet(node);
         }
-        return validmoves.toArray(new Position[0][0]);
     }
 
     /**
-     * This will convert getAvailableMoves board into a linkedlist for easier 
-     * manipulation in our monte carlo tree searches
-     * @param board
-     * @return
+     * This method counts a visit to the node with the reward of a lost game for every player,
+     * while a thread searches below it, so that other threads are less likely to choose it
+     * @param node the node
      */
-    public LinkedList<Position[]> validMoves(Board board) {
-        Position[][] validMoves = getAvailableMoves(board);
-        LinkedList<Position[]> unexplored = new LinkedList<>();
-        for (int i = 0; i < validMoves.length; ++i) {
-            unexplored.add(validMoves[i]);
+    public void addVirtualLoss(int node) {
+        visits.incrementAndGet(node);
+        for (int i = 0; i < 3; i++) {
+            rewards.addAndGet(3 * node + i, VIRTUAL_LOSS);
         }
-        return unexplored;
     }
 
     /**
-     * This method allows us to get the player whose turn it is 
-     * @return player whose turn it is 
+     * This method backs up a reward through nodes that have a virtual loss, replacing the loss with the reward.
+     * The visit was counted with the virtual loss, so it is not counted again
+     *
+     * @param node the node the game was simulated from
+     * @param reward the reward of each player, by Colour ordinal
      */
-    public Colour getPlayer() {
-        return player;
+    public void backPropagateVirtual(int node, int[] reward) {
+        for (; node != NONE; node = parents[node]) {
+            addRewards(node, reward, -VIRTUAL_LOSS);
+        }
     }
 
     /**
-     * This method allows us to access the reward for a player inside of our reward hashmap
-     * @param player whose reward we want to find out 
-     * @return reward for said player
+     * This method adds a reward to the reward sums of the players at a node
+     *
+     * @param node the node
+     * @param reward the reward of each player, by Colour ordinal
+     * @param offset an amount added to each player's reward too
      */
-    public double getRewardForPlayer(Colour player) {
-        return reward.getRewardForPlayer(player);
+    private void addRewards(int node, int[] reward, int offset) {
+        for (int i = 0; i < 3; i++) {
+            rewards.addAndGet(3 * node + i, reward[i] + offset);
+        }
     }
 
     /**
-     * This method will allow us to access al the children of a node
-     * @return a linked list of all the child nodes
+     * This method will allow us to find out what the most visited child of a node is
+     * @param node the node
+     * @return the tried child that has been visited the most, the first of them if several have, or NONE if none has
      */
-    public LinkedList<MctsNode> getChildNodes() {
-        return children;
+    public int getMostVisitedChild(int node) {
+        int mostVisitCount = 0;
+        int bestChild = NONE;
+        int first = firstChildren[node];
+        for (int child = first; child < first + expanded.get(node); child++) {
+            if (visits.get(child) > mostVisitCount) {
+                bestChild = child;
+                mostVisitCount = visits.get(child);
+            }
+        }
+        return bestChild;
     }
 
     /**
-     * This method allows us to find out the number of simulations in our monte carlo tree search
-     * @return number of simulations 
+     * This method decides whether the most visited child of the root will still be the most visited after more iterations
+     * @param remaining the most iterations that may still be run
+     * @return whether no other move can reach as many visits as the most visited child in the remaining iterations
      */
-    public int getNumberOfSimulations() {
-        return numSimulations;
+    public boolean mostVisitedIsDecided(long remaining) {
+        int most = 0;
+        int second = 0; // a move not yet tried has no visits, so it is never above second
+        int first = firstChildren[ROOT];
+        for (int child = first; child < first + expanded.get(ROOT); child++) {
+            int childVisits = visits.get(child);
+            if (childVisits > most) {
+                second = most;
+                most = childVisits;
+            } else if (childVisits > second) {
+                second = childVisits;
+            }
+        }
+        return most - second > remaining;
     }
 
     /**
-     * This method will allow us to determine whether a node can be expanded or not
-     * @return boolean of whether we can expand a node or not 
+     * This method finds the child of a node reached by a move
+     * @param node the node
+     * @param start the start position of the move
+     * @param end the end position of the move
+     * @return the child, or NONE if the move has not been tried
      */
-    public boolean nodeCanBeExpanded() {
-        return unexploredMoves.size() > 0;
+    public int findChild(int node, Position start, Position end) {
+        int first = firstChildren[node];
+        for (int child = first; child < first + expanded.get(node); child++) {
+            if (MoveCode.getStart(moves[child]) == start && MoveCode.getEnd(moves[child]) == end) {
+                return child;
+            }
+        }
+        return NONE;
     }
 
     /**
-     * This method will allow us to find out what the most visited node is in our monte
-     * carlo tree search
-     * @return MctsNode that has been visited the most
+     * This method replaces the tree with a copy of the subtree below a node of another tree, with the node as the root.
+     * The copy is abandoned if it would fill more than half the tree, leaving too little room to search.
+     * @param from the tree to copy from
+     * @param node the node of that tree to copy the subtree of
+     * @return whether the subtree was copied; if not, the tree must be reset before it is searched
      */
-    public MctsNode getMostVisitedNode() {
-        int mostVisitCount = 0;
-        MctsNode bestChild = null;
+    public boolean copySubtree(MctsTree from, int node) {
+        size.set(1);
+        parents[ROOT] = NONE;
+        moves[ROOT] = NO_MOVE;
+        return copyNode(from, node, ROOT, parents.length / 2);
+    }
 
-        for (MctsNode child : getChildNodes()) {
-            if (child.getNumberOfSimulations() > mostVisitCount) {
-                bestChild = child;
-                mostVisitCount = child.getNumberOfSimulations();
+    /**
+     * This method copies a node and the subtree below it from another tree
+     * @param from the tree to copy from
+     * @param node the node of that tree
+     * @param copy the node of this tree to copy it to, whose parent and move are already set
+     * @param limit the most nodes this tree may hold
+     * @return whether the subtree fitted
+     */
+    private boolean copyNode(MctsTree from, int node, int copy, int limit) {
+        keys[copy] = from.keys[node];
+        players[copy] = from.players[node];
+        visits.set(copy, from.visits.get(node));
+        for (int i = 0; i < 3; i++) {
+            rewards.set(3 * copy + i, from.rewards.get(3 * node + i));
+        }
+        int count = from.childCounts.get(node);
+        int tried = from.expanded.get(node);
+        childCounts.set(copy, count);
+        expanded.set(copy, tried);
+        if (count < 0) {
+            return true;
+        }
+        if (size.get() + count > limit) {
+            return false;
+        }
+        int first = size.getAndAdd(count);
+        int fromFirst = from.firstChildren[node];
+        firstChildren[copy] = first;
+        for (int i = 0; i < count; i++) {
+            parents[first + i] = copy;
+            moves[first + i] = from.moves[fromFirst + i];
+            players[first + i] = from.players[fromFirst + i];
+            clear(first + i); // the children tried are copied over this
+        }
+        for (int i = 0; i < tried; i++) {
+            if (!copyNode(from, fromFirst + i, first + i, limit)) {
+                return false;
             }
         }
-        return bestChild;
+        return true;
     }
 
     /**
-     * This method will allow us to find out the move that was used to get to a node
-     * @return move that was used to get to a node 
+     * This method returns the first child of a node, so its tried children can be looped through
+     * @param node the node
+     * @return the first child
      */
-    public Position[] getMoveUsedToGetToNode() {
-        return moveUsedToGetToNode;
+    public int getFirstChild(int node) {
+        return firstChildren[node];
     }
-}
-
-/**
- * A reward class that will help us keep track of the rewards for each player
- */
-class Reward {
 
-    HashMap<Colour, Integer> rewards = new HashMap<>();
+    /**
+     * This method returns the number of children of a node that have been tried
+     * @param node the node
+     * @return the number of tried children, which follow the first child
+     */
+    public int getTriedChildren(int node) {
+        return expanded.get(node);
+    }
 
     /**
-     * Will insert the rewards for each respective player inside of our hasmap
-     * 
-     * @param reward for player 1
-     * @param reward for player 2
-     * @param reward for player 3
+     * This method allows us to find out the number of simulations through a node
+     * @param node the node
+     * @return number of simulations
      */
-    public Reward(int reward1, int reward2, int reward3) {
-        rewards.put(Colour.BLUE, reward1);
-        rewards.put(Colour.GREEN, reward2);
-        rewards.put(Colour.RED, reward3);
+    public int getNumberOfSimulations(int node) {
+        return visits.get(node);
     }
 
     /**
-     * This method will allow us to retrieve rewards
-     * 
-     * @return returns the hashmap of rewards
+     * This method allows us to access the reward sum for a player at a node
+     * @param node the node
+     * @param player whose reward we want to find out
+     * @return reward for said player
      */
-    public HashMap<Colour, Integer> getReward() {
-        return rewards;
+    public double getRewardForPlayer(int node, Colour player) {
+        return rewards.get(3 * node + player.ordinal());
     }
 
     /**
-     * This method will allow us to retrieve the reward for a specific player
-     * 
-     * @param player the colour of the player we want to retrieve reward for
-     * @return the value of this players reward
+     * This method returns the packed move used to get to a node
+     * @param node the node
+     * @return the packed move, or NO_MOVE for the root
      */
-    public int getRewardForPlayer(Colour player) {
-        return rewards.get(player);
+    public int getMove(int node) {
+        return moves[node];
     }
 
     /**
-     * This method will allow us to add reward values inside of the hashmap of
-     * rewards for all the players
-     * 
-     * @param reward the reward to insert for each player
+     * This method returns the hash key of the board at a node
+     * @param node the node
+     * @return the hash key
      */
-    public void addReward(Reward reward) {
-        rewards.put(Colour.BLUE, rewards.get(Colour.BLUE) + reward.getRewardForPlayer(Colour.BLUE));
-        rewards.put(Colour.GREEN, rewards.get(Colour.GREEN) + reward.getRewardForPlayer(Colour.GREEN));
-        rewards.put(Colour.RED, rewards.get(Colour.RED) + reward.getRewardForPlayer(Colour.RED));
+    public long getKey(int node) {
+        return keys[node];
     }
 
+    /**
+     * This method returns the number of nodes allocated
+     * @return the number of nodes
+     */
+    public int size() {
+        return size.get();
+    }
 }
 
 public class mcts extends Agent {
 
     private static final String name = "mcts";
-    Board gameCopy;
+    // shared by all agents using the same number of threads
+    private static final HashMap<Integer, ForkJoinPool> POOLS = new HashMap<Integer, ForkJoinPool>();
+    private Parallelism parallelism = Parallelism.SINGLE;
+    private int threads = 1;
+    private long lastIterationNanos = 0; // the time the iterations of the last search took
+    private static final int TREE_CAPACITY = 1 << 19; // the number of nodes in each tree, about 30MB
+    private MctsTree tree = null; // the tree searched, kept to reuse the subtree of the position reached next
+    private MctsTree spare = null; // the tree a reused subtree is copied into, which then swaps with tree
+    private MctsTree[] rootTrees = null; // a tree for each thread of a root parallel search
+    private boolean treeKept = false; // whether tree holds the last search
+    private int treeMoveCount = 0; // the number of moves made on the board at the root of the kept tree
+    private int reusedSimulations = 0; // the number of simulations in the subtree reused by the last search
+    private static final int UNTIMED = 1; // the time left, in milliseconds, that the game gives each player when it is untimed
+    private static final int EXPECTED_MOVES = 80; // the number of moves each player is expected to make in a game
+    private static final int MIN_MOVES_TO_PLAN = 20; // the time left is always shared between at least this many moves
+    private static final long MAX_MOVE_MILLIS = 10000; // the most time spent on one move
+    private static final long RESERVE_MILLIS = 50; // the time left that is never planned for, to return the move in
+    private static final int CHECK_INTERVAL = 64; // the iterations between checks of the deadline and of early stopping
+    private int lastIterations = 0; // the number of iterations the last search ran
+
+    /**
+     * The ways the search can use several threads.
+     * SINGLE runs every iteration on the calling thread.
+     * TREE runs the iterations on several threads that all search one shared tree,
+     * with a virtual loss on the nodes each thread is below so the threads spread across the tree.
+     * ROOT builds an independent tree on each thread, with its own random numbers, each running every iteration,
+     * and chooses the move with the most visits summed over the trees, so the threads share nothing while they search.
+     * The trees are not kept between moves in this mode.
+     * Each tree is allocated the first time it is needed, and reused for every search after.
+     */
+    public enum Parallelism {
+        SINGLE, TREE, ROOT
+    }
 
     public mcts() {
 
@@ -289,101 +485,467 @@ public class mcts extends Agent {
 
     public int maxIterations = 200; // This number specifies the number of simulations our monte carlo tree search performs
 
+    public boolean verbose = false; // whether playMove prints the iterations each move ran and the time they took
+
+    /**
+     * This method sets how the search uses threads
+     * @param parallelism the parallel mode
+     * @param threads the number of threads used by the parallel modes
+     */
+    public void setParallelism(Parallelism parallelism, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed.");
+        }
+        this.parallelism = parallelism;
+        this.threads = threads;
+    }
+
+    /**
+     * This method returns the number of simulations already in the subtree the last search started from
+     * @return the number of simulations reused, 0 if the search started with a new tree
+     */
+    public int getReusedSimulations() {
+        return reusedSimulations;
+    }
+
+    /**
+     * This method returns the number of iterations the last search ran
+     * @return the number of iterations
+     */
+    public int getLastIterations() {
+        return lastIterations;
+    }
+
     /**
-     * This method will begin our monte carlo tree search and return the best move that we should make on the board
+     * This method returns the time the iterations of the last search took, to measure iterations per second
+     * @return the time in nanoseconds
+     */
+    public long getLastIterationNanos() {
+        return lastIterationNanos;
+    }
+
+    /**
+     * This method will begin our monte carlo tree search and return the best move that we should make on the board.
+     * Each iteration plays its moves on the given board with makeMove, and unmakes them all once it completes,
+     * so the board is searched in place rather than being cloned.
+     * The tree is kept after the search, and if the moves played since, read from the board's history,
+     * lead to a node of it, the next search starts from a copy of that node's subtree rather than a new tree.
+     * The search runs maxIterations iterations, stopping sooner if the most visited move can no longer change.
      * @param game the current state of the board
      * @return the best move to make after running monte carlo tree search on the board
      * @throws ImpossiblePositionException
      */
     public Position[] getMove(Board game) throws ImpossiblePositionException {
-        MctsNode rootNode = new MctsNode(null, null, game);
-        for (int iteration = 0; iteration < maxIterations; iteration++) {
-            try {
-                gameCopy = (Board) game.clone();
-            } catch (CloneNotSupportedException e) {
-                gameCopy = game;
-            }
-            MctsNode node = select(rootNode, gameCopy);
-            node = node.expand(gameCopy);
-            Reward reward = rollout(gameCopy);
-            node.backPropagate(reward);
+        return search(game, maxIterations, Long.MAX_VALUE);
+    }
 
+    /**
+     * This method runs monte carlo tree search for a time rather than a number of iterations,
+     * stopping sooner if the most visited move can no longer change in the time left
+     * @param game the current state of the board
+     * @param millis the time to search for, in milliseconds
+     * @return the best move to make after running monte carlo tree search on the board
+     * @throws ImpossiblePositionException
+     */
+    public Position[] getMove(Board game, long millis) throws ImpossiblePositionException {
+        return search(game, Integer.MAX_VALUE, System.nanoTime() + millis * 1000000);
+    }
+
+    /**
+     * This method returns the time to spend on a move, sharing the time left between the moves the player
+     * is still expected to make, and never fewer than MIN_MOVES_TO_PLAN of them
+     * @param board the current state of the board
+     * @return the time in milliseconds, or 0 if the game is untimed
+     */
+    public static long moveMillis(Board board) {
+        int time = board.getTimeLeft(board.getTurn());
+        if (time <= UNTIMED) {
+            return 0;
         }
-        MctsNode mostVisitedChild = rootNode.getMostVisitedNode();
-        return mostVisitedChild.getMoveUsedToGetToNode();
+        int movesLeft = Math.max(EXPECTED_MOVES - board.getMoveCount() / 3, MIN_MOVES_TO_PLAN);
+        return Math.max(Math.min((time - RESERVE_MILLIS) / movesLeft, MAX_MOVE_MILLIS), 1);
     }
 
     /**
-     * This selects a node from the decision tree to evaluate
-     * 
-     * @param node which has information about different moves
-     * @param game the board for said move
-     * @return the node that we select
+     * This method runs monte carlo tree search until it has run a number of iterations or reached a deadline
+     * @param game the current state of the board
+     * @param limit the most iterations to run
+     * @param deadline the System.nanoTime by which to stop, or Long.MAX_VALUE for none
+     * @return the best move to make after running monte carlo tree search on the board
      * @throws ImpossiblePositionException
      */
-    private MctsNode select(MctsNode node, Board game) throws ImpossiblePositionException {
-        while (!node.nodeCanBeExpanded() && !game.gameOver()) {
-            node = node.select();
-            Position[] move = node.getMoveUsedToGetToNode();
-            if (move != null) {
-                game.move(move[0], move[1]);
+    private Position[] search(Board game, int limit, long deadline) throws ImpossiblePositionException {
+        long start = System.nanoTime();
+        if (parallelism == Parallelism.ROOT && threads > 1) {
+            treeKept = false;
+            reusedSimulations = 0;
+            int move = searchRoots(game, limit, deadline);
+            lastIterationNanos = System.nanoTime() - start;
+            return move == MctsTree.NO_MOVE ? null : MoveCode.toPositions(move);
+        }
+        prepareTree(game);
+        if (parallelism == Parallelism.TREE && threads > 1) {
+            lastIterations = searchTree(game, limit, start, deadline);
+        } else {
+            Searcher searcher = new Searcher(game);
+            int iteration = 0;
+            while (iteration < limit) {
+                searcher.iterate(tree, false);
+                iteration++;
+                if (iteration % CHECK_INTERVAL == 0 && shouldStop(tree, limit, iteration, start, deadline)) {
+                    break;
+                }
+            }
+            lastIterations = iteration;
+        }
+        lastIterationNanos = System.nanoTime() - start;
+        treeKept = true;
+        treeMoveCount = game.getMoveCount();
+        int mostVisitedChild = tree.getMostVisitedChild(MctsTree.ROOT);
+        return mostVisitedChild == MctsTree.NONE ? null : MoveCode.toPositions(tree.getMove(mostVisitedChild));
+    }
+
+    /**
+     * This method readies the tree for a search of the board. If the moves played since the kept tree was searched
+     * lead to a node of it, the subtree below that node is copied into the spare tree, which becomes the tree searched,
+     * and the rest is discarded. Otherwise the tree is reset, so the search starts from a new tree.
+     * @param game the current state of the board
+     */
+    private void prepareTree(Board game) {
+        if (tree == null) {
+            tree = new MctsTree(TREE_CAPACITY);
+        }
+        int node = treeKept ? findReachedNode(game) : MctsTree.NONE;
+        treeKept = false;
+        if (node != MctsTree.NONE) {
+            if (spare == null) {
+                spare = new MctsTree(TREE_CAPACITY);
+            }
+            if (spare.copySubtree(tree, node)) {
+                MctsTree searched = spare;
+                spare = tree;
+                tree = searched;
+                reusedSimulations = tree.getNumberOfSimulations(MctsTree.ROOT);
+                return;
             }
         }
+        tree.reset(game);
+        reusedSimulations = 0;
+    }
 
+    /**
+     * This method finds the node of the kept tree reached by the moves played since it was searched
+     * @param game the current state of the board
+     * @return the node, or NONE if a move played was not tried in the tree, or the node is not the board's position
+     */
+    private int findReachedNode(Board game) {
+        int moveCount = game.getMoveCount();
+        if (moveCount < treeMoveCount) {
+            return MctsTree.NONE;
+        }
+        int node = MctsTree.ROOT;
+        for (int i = treeMoveCount; i < moveCount && node != MctsTree.NONE; i++) {
+            Position[] move = game.getMove(i);
+            node = tree.findChild(node, move[0], move[1]);
+        }
+        if (node == MctsTree.NONE || tree.getKey(node) != game.hashKey()) {
+            return MctsTree.NONE;
+        }
         return node;
     }
 
     /**
-     * This function will make a copy of the game board and simulate the board using 
-     * random agents playing against each other all the way till the end and then return
-     * the reward value of the simulated board
-     * 
-     * @param game which is a board
-     * @return reward for the board
+     * This method decides whether to stop a search: once the deadline has passed,
+     * or once the most visited move at the root can no longer be overtaken in the iterations that may still be run.
+     * When there is a deadline, the iterations that may still be run are estimated from the rate so far.
+     * @param tree the tree searched
+     * @param limit the most iterations to run
+     * @param iterations the iterations run so far
+     * @param start the System.nanoTime the search started
+     * @param deadline the System.nanoTime by which to stop, or Long.MAX_VALUE for none
+     * @return whether to stop
      */
-    private Reward rollout(Board board) {
-        Board gameCopy;
-        try {
-            gameCopy = (Board) board.clone();
-        } catch (CloneNotSupportedException e) {
-            gameCopy = board;
+    private static boolean shouldStop(MctsTree tree, int limit, int iterations, long start, long deadline) {
+        long remaining = limit - iterations;
+        if (deadline != Long.MAX_VALUE) {
+            long now = System.nanoTime();
+            if (now >= deadline) {
+                return true;
+            }
+            remaining = Math.min(remaining, iterations * (deadline - now) / Math.max(now - start, 1) + 1);
         }
-        Agent random = new RandomAgent();
-        while (!gameCopy.gameOver()) {
-            Position[] move = random.playMove(gameCopy);
-            Position start = move[0];
-            Position end = move[1];
-            try {
-                gameCopy.move(start, end, 1);
-            } catch (ImpossiblePositionException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+        return tree.mostVisitedIsDecided(remaining);
+    }
+
+    /**
+     * This method runs the iterations on several threads that share one tree, each on its own copy of the board
+     * @param game the current state of the board
+     * @param limit the most iterations to run
+     * @param start the System.nanoTime the search started
+     * @param deadline the System.nanoTime by which to stop, or Long.MAX_VALUE for none
+     * @return the number of iterations run
+     * @throws ImpossiblePositionException
+     */
+    private int searchTree(Board game, int limit, long start, long deadline)
+            throws ImpossiblePositionException {
+        AtomicInteger iterations = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Callable<Integer>> workers = new ArrayList<>();
+        MctsTree shared = tree;
+        for (int t = 0; t < threads; t++) {
+            Searcher searcher = new Searcher(copy(game)); // copied here, as copying changes the board copied
+            workers.add(() -> {
+                int run = 0;
+                int iteration;
+                while (!stop.get() && (iteration = iterations.getAndIncrement()) < limit) {
+                    searcher.iterate(shared, true);
+                    run++;
+                    if ((iteration + 1) % CHECK_INTERVAL == 0 && shouldStop(shared, limit, iteration + 1, start, deadline)) {
+                        stop.set(true);
+                    }
+                }
+                return run;
+            });
+        }
+        int total = 0;
+        for (int run : runAll(workers)) {
+            total += run;
+        }
+        return total;
+    }
+
+    /**
+     * This method builds an independent tree on each thread, each on its own copy of the board,
+     * and merges the statistics of the children of their roots.
+     * The move chosen is the one with the most visits over all the trees, and of those with equal visits,
+     * the one with the largest reward for the player to move, and then the first found.
+     * Each tree stops at the deadline, but not early, as a move decided in one tree may not be decided in the merge.
+     * @param game the current state of the board
+     * @param limit the most iterations to run in each tree
+     * @param deadline the System.nanoTime by which to stop, or Long.MAX_VALUE for none
+     * @return the packed move chosen, or NO_MOVE if there are no moves
+     * @throws ImpossiblePositionException
+     */
+    private int searchRoots(Board game, int limit, long deadline) throws ImpossiblePositionException {
+        if (rootTrees == null || rootTrees.length != threads) {
+            rootTrees = new MctsTree[threads];
+        }
+        List<Callable<MctsTree>> trees = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            if (rootTrees[t] == null) {
+                rootTrees[t] = new MctsTree(TREE_CAPACITY);
             }
-            ;
+            MctsTree tree = rootTrees[t];
+            Board copy = copy(game); // copied here, as copying changes the board copied
+            trees.add(() -> {
+                tree.reset(copy);
+                Searcher searcher = new Searcher(copy);
+                for (int iteration = 0; iteration < limit; iteration++) {
+                    searcher.iterate(tree, false);
+                    if ((iteration + 1) % CHECK_INTERVAL == 0 && System.nanoTime() >= deadline) {
+                        break;
+                    }
+                }
+                return tree;
+            });
         }
-        int blue = 0;
-        int green = 0;
-        int red = 0;
-        if (gameCopy.getWinner() == Colour.BLUE) {
-            blue += 100;
+        Colour player = game.getTurn();
+        LinkedHashMap<Integer, double[]> merged = new LinkedHashMap<>(); // visits and reward for each move, in the order found
+        lastIterations = 0;
+        for (MctsTree tree : runAll(trees)) {
+            lastIterations += tree.getNumberOfSimulations(MctsTree.ROOT);
+            int first = tree.getFirstChild(MctsTree.ROOT);
+            for (int child = first; child < first + tree.getTriedChildren(MctsTree.ROOT); child++) {
+                double[] stats = merged.computeIfAbsent(tree.getMove(child), move -> new double[2]);
+                stats[0] += tree.getNumberOfSimulations(child);
+                stats[1] += tree.getRewardForPlayer(child, player);
+            }
         }
-        if (gameCopy.getLoser() == Colour.BLUE) {
-            blue -= 10000;
+        int bestMove = MctsTree.NO_MOVE;
+        double[] best = null;
+        for (Map.Entry<Integer, double[]> entry : merged.entrySet()) {
+            double[] stats = entry.getValue();
+            if (best == null || stats[0] > best[0] || (stats[0] == best[0] && stats[1] > best[1])) {
+                best = stats;
+                bestMove = entry.getKey();
+            }
         }
-        if (gameCopy.getWinner() == Colour.RED) {
-            red += 100;
+        return bestMove;
+    }
+
+    /**
+     * This method runs tasks on the pool of threads and waits for them to finish
+     * @param tasks the tasks
+     * @return the results of the tasks, in order
+     * @throws ImpossiblePositionException if a task failed to make a move
+     */
+    private <T> List<T> runAll(List<? extends Callable<T>> tasks) throws ImpossiblePositionException {
+        try {
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : poolOf(threads).invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Search interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ImpossiblePositionException) {
+                throw (ImpossiblePositionException) e.getCause();
+            }
+            throw new IllegalStateException("Search failed", e.getCause());
         }
-        if (gameCopy.getLoser() == Colour.RED) {
-            red -= 10000;
+    }
+
+    /**
+     * This method returns the pool of threads for a number of threads, creating it when first needed
+     * @param threads the number of threads
+     * @return the pool, which is shared by all agents using the same number of threads
+     */
+    private static synchronized ForkJoinPool poolOf(int threads) {
+        ForkJoinPool pool = POOLS.get(threads);
+        if (pool == null) {
+            pool = new ForkJoinPool(threads);
+            POOLS.put(threads, pool);
         }
-        if (gameCopy.getWinner() == Colour.GREEN) {
-            green += 100;
+        return pool;
+    }
+
+    /**
+     * This method copies a board
+     * @param board the board
+     * @return a copy that can be changed without changing the board
+     */
+    private static Board copy(Board board) {
+        try {
+            return (Board) board.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The state of one thread's search: the board it plays its iterations on,
+     * and the number of moves made in the current iteration, unmade once it completes
+     */
+    private static class Searcher {
+        private final Board game;
+        private int movesMade;
+        private final Position[] starts = new Position[Board.MAX_MOVES];
+        private final Position[] ends = new Position[Board.MAX_MOVES];
+        private final int[] reward = new int[3]; // the reward of the last simulated game for each player, by Colour ordinal
+        private final IntMoveList generated = new IntMoveList(64); // the moves of a node being expanded
+
+        Searcher(Board game) {
+            this.game = game;
+        }
+
+        /**
+         * This method runs one iteration: selection, expansion, a rollout and backpropagation
+         * 
+         * @param tree the tree, whose root is the position of the board
+         * @param virtualLoss whether to add a virtual loss to the nodes descended through, for a shared tree
+         * @throws ImpossiblePositionException
+         */
+        void iterate(MctsTree tree, boolean virtualLoss) throws ImpossiblePositionException {
+            movesMade = 0;
+            try {
+                if (virtualLoss) {
+                    tree.addVirtualLoss(MctsTree.ROOT);
+                }
+                int node = select(tree, virtualLoss);
+                int child = tree.expand(node, game, generated);
+                if (child != node) {
+                    movesMade++;
+                    if (virtualLoss) {
+                        tree.addVirtualLoss(child);
+                    }
+                }
+                rollout();
+                if (virtualLoss) {
+                    tree.backPropagateVirtual(child, reward);
+                } else {
+                    tree.backPropagate(child, reward);
+                }
+            } finally {
+                for (; movesMade > 0; movesMade--) {
+                    game.unmakeMove(); // return the board to the root position
+                }
+            }
+        }
+
+        /**
+         * This selects a node from the decision tree to evaluate
+         * 
+         * @param tree the tree, whose root is the position of the board
+         * @param virtualLoss whether to add a virtual loss to the nodes selected
+         * @return the node that we select
+         * @throws ImpossiblePositionException
+         */
+        private int select(MctsTree tree, boolean virtualLoss) throws ImpossiblePositionException {
+            int node = MctsTree.ROOT;
+            while (!tree.canExpand(node) && !game.gameOver()) {
+                int child = tree.select(node);
+                if (child == MctsTree.NONE) {
+                    break; // no legal moves for the player
+                }
+                node = child;
+                game.makeMove(tree.getMove(node));
+                movesMade++;
+                if (virtualLoss) {
+                    tree.addVirtualLoss(node);
+                }
+            }
+
+            return node;
         }
-        if (gameCopy.getLoser() == Colour.GREEN) {
-            green -= 10000;
+
+        /**
+         * This function will simulate the board using random moves for every player
+         * all the way till the end and then set the reward value of the simulated
+         * board. The moves are made with makeMove, and are unmade by iterate.
+         */
+        private void rollout() {
+            while (!game.gameOver()) {
+                int count = game.generateMoves(starts, ends);
+                if (count == 0) {
+                    break; // no legal moves left for the player
+                }
+                int move = ThreadLocalRandom.current().nextInt(count);
+                try {
+                    game.makeMove(starts[move], ends[move], 1);
+                    movesMade++;
+                } catch (ImpossiblePositionException e) {
+                    e.printStackTrace();
+                }
+            }
+            int blue = 0;
+            int green = 0;
+            int red = 0;
+            Colour winner = game.getWinner();
+            Colour loser = game.getLoser();
+            if (winner == Colour.BLUE) {
+                blue += 100;
+            }
+            if (loser == Colour.BLUE) {
+                blue -= 10000;
+            }
+            if (winner == Colour.RED) {
+                red += 100;
+            }
+            if (loser == Colour.RED) {
+                red -= 10000;
+            }
+            if (winner == Colour.GREEN) {
+                green += 100;
+            }
+            if (loser == Colour.GREEN) {
+                green -= 10000;
+            }
+            reward[Colour.BLUE.ordinal()] = blue; // Result of simulated game
+            reward[Colour.GREEN.ordinal()] = green;
+            reward[Colour.RED.ordinal()] = red;
         }
-        Reward result = new Reward(blue, green, red); // Result of simulated game
-        return result;
     }
 
     /**
@@ -398,16 +960,17 @@ public class mcts extends Agent {
      *         is the position to move that piece to.
      **/
     public Position[] playMove(Board board) {
-        Colour player = board.getTurn();
-        // -----Initial setup
-        // COMPLETE THIS
         if (board.gameOver())
             return null;
         try {
-            Position[] bestPosition = getMove(board);
+            long millis = moveMillis(board);
+            Position[] bestPosition = millis == 0 ? getMove(board) : getMove(board, millis);
+            if (verbose) {
+                System.out.println(name + " " + board.getTurn() + ": " + lastIterations + " iterations in "
+                        + lastIterationNanos / 1000000 + " of " + millis + " ms");
+            }
             return bestPosition;
         } catch (ImpossiblePositionException e) {
-            // TODO Auto-generated catch block
             e.printStackTrace();
         }
         return new Position[] {};